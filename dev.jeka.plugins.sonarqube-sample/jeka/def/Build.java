@@ -1,3 +1,7 @@
+import benchmarks.AnalysisBenchmark;
+import benchmarks.PreparationBenchmark;
+import benchmarks.PropertiesBenchmark;
+import benchmarks.SonarBenchmarks;
 import dev.jeka.core.api.java.JkJavaVersion;
 import dev.jeka.core.api.java.project.JkJavaProject;
 import dev.jeka.core.tool.JkClass;
@@ -9,6 +13,8 @@ import dev.jeka.plugins.sonarqube.JkPluginSonarqube;
 import dev.jeka.plugins.springboot.JkPluginSpringboot;
 
 @JkDefClasspath("dev.jeka:springboot-plugin:3.0.0.RC11")
+@JkDefClasspath("org.openjdk.jmh:jmh-core:1.33")
+@JkDefClasspath("org.openjdk.jmh:jmh-generator-annprocess:1.33")
 //@JkDefClasspath("../dev.jeka.plugins.sonarqube/jeka/output/dev.jeka.sonarqube-plugin.jar")
 @JkDefClasspath("../dev.jeka.plugins.sonarqube/jeka/output/classes")
 class Build extends JkClass {
@@ -19,6 +25,12 @@ class Build extends JkClass {
 
     private final JkPluginSonarqube sonarqube = getPlugin(JkPluginSonarqube.class);
 
+    @JkDoc("Number of synthetic jars on the classpath of micro benchmarks.")
+    public int benchmarkJars = 5000;
+
+    @JkDoc("Number of analyses per execution mode run by end-to-end benchmark.")
+    public int benchmarkRuns = 3;
+
     @Override
     protected void setup() {
         springboot.setSpringbootVersion("2.5.5");
@@ -55,6 +67,27 @@ class Build extends JkClass {
         sonarqube.run();
     }
 
+    @JkDoc({"Runs JMH benchmarks of sonar properties assembly on a synthetic classpath of 'benchmarkJars' jars,",
+            "of scanner jar retrieval and of sonar configuration from this project.",
+            "Results are written to jeka/output/sonar-benchmark-micro.csv."})
+    public void benchmarkMicro() {
+        SonarBenchmarks.run(getClass(), getOutputDir().resolve("sonar-benchmark-micro.csv"),
+                getOutputDir().resolve("sonar-benchmark-report.csv"),
+                options -> options.param("jarCount", Integer.toString(benchmarkJars)),
+                PropertiesBenchmark.class, PreparationBenchmark.class);
+    }
+
+    @JkDoc({"Tests then runs 'benchmarkRuns' analyses in each execution mode against the server at 'sonar.host.url'.",
+            "Each mode runs in a fresh JVM. Wall times are written to jeka/output/sonar-benchmark-analysis.csv,",
+            "scanner startup times and peak RSS are appended to jeka/output/sonar-benchmark-report.csv."})
+    public void benchmarkEndToEnd() {
+        springboot.javaPlugin().test();
+        SonarBenchmarks.run(getClass(), getOutputDir().resolve("sonar-benchmark-analysis.csv"),
+                getOutputDir().resolve("sonar-benchmark-report.csv"),
+                options -> options.measurementIterations(benchmarkRuns),
+                AnalysisBenchmark.class);
+    }
+
     // Clean, compile, test and generate springboot application jar
     public static void main(String[] args) {
         JkInit.instanceOf(Build.class, args).cleanPack();
@@ -0,0 +1,108 @@
+package benchmarks;
+
+import dev.jeka.core.tool.JkClass;
+import dev.jeka.core.tool.JkConstants;
+import dev.jeka.plugins.sonarqube.JkPluginSonarqube;
+import dev.jeka.plugins.sonarqube.JkSonarqube;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs full analyses of the sample project, against the server configured with 'sonar.host.url', in each
+ * execution mode. JMH records the wall time of each analysis ; scanner startup times and peak RSS of the
+ * process running the scanner are appended to the report file.<p>
+ * Each mode runs in a fresh JVM, and the DAEMON mode in a fresh daemon, so the resident memory high water mark
+ * of a mode is not inflated by former analyses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 3)
+@Fork(1)
+public class AnalysisBenchmark {
+
+    private static final Pattern STARTUP_MILLIS = Pattern.compile("\"scannerStartup\": (\\d+)");
+
+    private static final String REPORT_HEADER = "mode,runs,scannerStartupMs,peakRssKb,jvmBaselineRssKb";
+
+    @Param({"FORK", "IN_PROCESS", "DAEMON"})
+    public JkSonarqube.ExecutionMode mode;
+
+    private JkPluginSonarqube sonarqube;
+
+    private Path workingDir;
+
+    private RssSampler sampler;
+
+    private long baselineKb;
+
+    private final List<String> startupMillis = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        JkClass build = SonarBenchmarks.newBuild();
+        sonarqube = build.getPlugins().get(JkPluginSonarqube.class);
+        sonarqube.executionMode = mode;
+        sonarqube.skipIfUpToDate = false;
+        workingDir = build.getBaseDir().resolve(JkConstants.JEKA_DIR + "/.sonar");
+        if (mode == JkSonarqube.ExecutionMode.DAEMON) {
+            RssSampler.stopDaemon();
+        }
+        baselineKb = RssSampler.vmHwmKb("self");
+        sampler = new RssSampler(mode);
+        sampler.start();
+    }
+
+    @Benchmark
+    public void analysis() {
+        sonarqube.run();
+    }
+
+    @TearDown(Level.Iteration)
+    public void recordStartup() {
+        startupMillis.add(startupMillis(workingDir));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sampler.stop();
+        String line = String.join(",", mode.name(), Integer.toString(startupMillis.size()),
+                String.join(" ", startupMillis), sampler.peakKb(), baselineKb < 0 ? "" : Long.toString(baselineKb));
+        Path reportFile = SonarBenchmarks.reportFile();
+        try {
+            Files.createDirectories(reportFile.toAbsolutePath().getParent());
+            if (!Files.exists(reportFile)) {
+                Files.write(reportFile, Collections.singletonList(REPORT_HEADER));
+            }
+            Files.write(reportFile, Collections.singletonList(line), StandardCharsets.UTF_8,
+                    StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Scanner startup time, as recorded in the analysis report written in the working dir.
+    private static String startupMillis(Path workingDir) {
+        Path report = workingDir.resolve("jeka-analysis-report.json");
+        try {
+            Matcher matcher = STARTUP_MILLIS.matcher(new String(Files.readAllBytes(report), StandardCharsets.UTF_8));
+            return matcher.find() ? matcher.group(1) : "";
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+}
@@ -0,0 +1,70 @@
+package benchmarks;
+
+import dev.jeka.core.api.java.project.JkJavaProject;
+import dev.jeka.core.tool.JkClass;
+import dev.jeka.core.tool.builtins.java.JkPluginJava;
+import dev.jeka.plugins.sonarqube.JkPluginSonarqube;
+import dev.jeka.plugins.sonarqube.JkSonarqube;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times the preparation of an analysis, before the scanner runs : getting the scanner jar, either embedded or
+ * resolved then cached, and configuring {@link JkSonarqube} from the java project of the sample build, which
+ * resolves and possibly prunes libraries.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PreparationBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class ToolJar {
+
+        @Param({"embedded", "4.6.2.2472"})
+        public String scannerVersion;
+
+        private final Method getToolJar = SonarBenchmarks.method(JkSonarqube.class, "getToolJar");
+
+        private JkSonarqube sonarqube;
+
+        @Setup
+        public void setup() {
+            sonarqube = "embedded".equals(scannerVersion) ? JkSonarqube.ofEmbedded()
+                    : JkSonarqube.ofVersion(scannerVersion);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Configuration {
+
+        private final Method createConfiguredSonarqube = SonarBenchmarks.method(JkPluginSonarqube.class,
+                "createConfiguredSonarqube", JkJavaProject.class);
+
+        private JkPluginSonarqube plugin;
+
+        private JkJavaProject project;
+
+        @Setup
+        public void setup() {
+            JkClass build = SonarBenchmarks.newBuild();
+            plugin = build.getPlugins().get(JkPluginSonarqube.class);
+            project = build.getPlugins().get(JkPluginJava.class).getProject();
+        }
+    }
+
+    @Benchmark
+    public Object getToolJar(ToolJar state) {
+        return SonarBenchmarks.invoke(state.getToolJar, state.sonarqube);
+    }
+
+    @Benchmark
+    public Object createConfiguredSonarqube(Configuration state) {
+        return SonarBenchmarks.invoke(state.createConfiguredSonarqube, state.plugin, state.project);
+    }
+
+}
@@ -0,0 +1,77 @@
+package benchmarks;
+
+import dev.jeka.plugins.sonarqube.JkSonarqube;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Times the property assembly of {@link JkSonarqube} on a synthetic classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PropertiesBenchmark {
+
+    @Param("5000")
+    public int jarCount;
+
+    private final Path baseDir = Paths.get("").toAbsolutePath();
+
+    private List<Path> jars;
+
+    private List<Path> externalJars;
+
+    private List<Path> duplicatedJars;
+
+    private JkSonarqube module;
+
+    @Setup
+    public void setup() {
+        jars = IntStream.range(0, jarCount)
+                .mapToObj(i -> baseDir.resolve("libs/group" + (i % 50) + "/artifact-" + i + "-1.0.jar"))
+                .collect(Collectors.toList());
+        externalJars = jars.stream()
+                .map(jar -> Paths.get("/opt/repo").resolve(baseDir.relativize(jar)))
+                .collect(Collectors.toList());
+        duplicatedJars = Stream.concat(jars.stream(), jars.stream()).collect(Collectors.toList());
+        module = JkSonarqube.ofEmbedded().setProjectBaseDir(baseDir)
+                .setProperty(JkSonarqube.JAVA_LIBRARIES, jars);
+    }
+
+    @Benchmark
+    public JkSonarqube librariesUnderBaseDir() {
+        return JkSonarqube.ofEmbedded().setProjectBaseDir(baseDir).setProperty(JkSonarqube.JAVA_LIBRARIES, jars);
+    }
+
+    @Benchmark
+    public JkSonarqube librariesOutsideBaseDir() {
+        return JkSonarqube.ofEmbedded().setProjectBaseDir(baseDir)
+                .setProperty(JkSonarqube.JAVA_LIBRARIES, externalJars);
+    }
+
+    @Benchmark
+    public JkSonarqube duplicatedBinaries() {
+        return JkSonarqube.ofEmbedded().setProjectBaseDir(baseDir).setBinaries(duplicatedJars);
+    }
+
+    @Benchmark
+    public Map<String, String> tenModules() {
+        JkSonarqube aggregate = JkSonarqube.ofEmbedded().setProjectBaseDir(baseDir);
+        for (int i = 0; i < 10; i++) {
+            aggregate.addModule("module" + i, module);
+        }
+        return aggregate.getProperties();
+    }
+
+}
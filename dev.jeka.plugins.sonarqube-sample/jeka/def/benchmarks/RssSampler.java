@@ -0,0 +1,146 @@
+package benchmarks;
+
+import dev.jeka.core.api.system.JkLocator;
+import dev.jeka.plugins.sonarqube.JkSonarqube;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/*
+ * Samples the high water mark of resident memory (VmHWM) of the processes running the scanner : forked children
+ * of this JVM in FORK mode, the daemon in DAEMON mode, and this JVM in IN_PROCESS mode. As the high water mark
+ * of a process never decreases, callers sample processes started for the measure only. Relies on Linux /proc
+ * file system, and reports nothing elsewhere.
+ */
+final class RssSampler {
+
+    private static final long PERIOD_MILLIS = 50;
+
+    private static final Path DAEMON_STATE_FILE = JkLocator.getCacheDir()
+            .resolve("sonarqube/daemon/daemon.properties");
+
+    private final JkSonarqube.ExecutionMode mode;
+
+    private final AtomicLong peakKb = new AtomicLong(-1);
+
+    private volatile boolean running;
+
+    private Thread thread;
+
+    RssSampler(JkSonarqube.ExecutionMode mode) {
+        this.mode = mode;
+    }
+
+    void start() {
+        running = true;
+        thread = new Thread(() -> {
+            while (running) {
+                sample();
+                try {
+                    Thread.sleep(PERIOD_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "rss-sampler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sample();
+    }
+
+    String peakKb() {
+        return peakKb.get() < 0 ? "" : Long.toString(peakKb.get());
+    }
+
+    /**
+     * Stops the running scanner daemon, if any, so next analysis starts a fresh one.
+     */
+    static void stopDaemon() {
+        String pid = daemonPid();
+        if (pid == null || !Files.exists(Paths.get("/proc", pid))) {
+            return;
+        }
+        try {
+            new ProcessBuilder("kill", pid).inheritIO().start().waitFor();
+            while (Files.exists(Paths.get("/proc", pid))) {
+                Thread.sleep(PERIOD_MILLIS);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot stop sonar scanner daemon " + pid, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while stopping sonar scanner daemon.", e);
+        }
+    }
+
+    static long vmHwmKb(String pid) {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc", pid, "status"))) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.replaceAll("\\D", ""));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Process is gone or not on Linux
+        }
+        return -1;
+    }
+
+    private void sample() {
+        for (String pid : pids()) {
+            long hwm = vmHwmKb(pid);
+            peakKb.accumulateAndGet(hwm, Math::max);
+        }
+    }
+
+    private List<String> pids() {
+        if (mode == JkSonarqube.ExecutionMode.IN_PROCESS) {
+            return Collections.singletonList("self");
+        }
+        if (mode == JkSonarqube.ExecutionMode.DAEMON) {
+            String pid = daemonPid();
+            return pid == null ? Collections.emptyList() : Collections.singletonList(pid);
+        }
+        List<String> result = new ArrayList<>();
+        try (Stream<Path> tasks = Files.list(Paths.get("/proc/self/task"))) {
+            for (Path task : tasks.collect(Collectors.toList())) {
+                String children = new String(Files.readAllBytes(task.resolve("children")),
+                        StandardCharsets.US_ASCII).trim();
+                if (!children.isEmpty()) {
+                    result.addAll(Arrays.asList(children.split("\\s+")));
+                }
+            }
+        } catch (IOException e) {
+            // Not on Linux
+        }
+        return result;
+    }
+
+    private static String daemonPid() {
+        Properties state = new Properties();
+        try (InputStream is = Files.newInputStream(DAEMON_STATE_FILE)) {
+            state.load(is);
+        } catch (IOException e) {
+            return null;
+        }
+        return state.getProperty("pid");
+    }
+
+}
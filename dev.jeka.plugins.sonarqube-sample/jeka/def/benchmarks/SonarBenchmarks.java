@@ -0,0 +1,134 @@
+package benchmarks;
+
+import dev.jeka.core.tool.JkClass;
+import dev.jeka.core.tool.JkInit;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Runs JMH benchmarks of the sonarqube plugin from the def classes of the sample build.<p>
+ * JMH runs each benchmark, and each value of its parameters, in a fresh JVM. As these JVMs are launched with
+ * the <code>java.class.path</code> of the current one, while def classes and their classpath are loaded by
+ * Jeka in a child classloader, the classpath of forked JVMs is set to the full classpath of def classes.
+ * Forked JVMs instantiate the build class, named by the {@link #BUILD_CLASS} system property, to get
+ * configured plugins.
+ */
+public final class SonarBenchmarks {
+
+    static final String BUILD_CLASS = "benchmark.buildClass";
+
+    static final String REPORT_FILE = "benchmark.reportFile";
+
+    private SonarBenchmarks() {
+    }
+
+    /**
+     * Runs the benchmarks defined in the specified classes and writes JMH results as CSV to the specified file.
+     */
+    public static void run(Class<? extends JkClass> buildClass, Path resultFile, Path reportFile,
+                           OptionsCustomizer customizer, Class<?>... benchmarkClasses) {
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .resultFormat(ResultFormatType.CSV)
+                .result(resultFile.toAbsolutePath().toString())
+                .jvmArgsAppend("-D" + BUILD_CLASS + "=" + buildClass.getName(),
+                        "-D" + REPORT_FILE + "=" + reportFile.toAbsolutePath());
+        for (Class<?> benchmarkClass : benchmarkClasses) {
+            options.include(benchmarkClass.getName() + "\\.");
+        }
+        customizer.customize(options);
+        String classpath = System.getProperty("java.class.path");
+        System.setProperty("java.class.path", defClasspath());
+        try {
+            new Runner(options.build()).run();
+        } catch (RunnerException e) {
+            throw new IllegalStateException("Benchmarks failed.", e);
+        } finally {
+            System.setProperty("java.class.path", classpath);
+        }
+    }
+
+    @FunctionalInterface
+    public interface OptionsCustomizer {
+
+        void customize(ChainedOptionsBuilder options);
+    }
+
+    /**
+     * Returns a new instance of the build class running the benchmarks, initialised as Jeka does.
+     */
+    @SuppressWarnings("unchecked")
+    static JkClass newBuild() {
+        String className = System.getProperty(BUILD_CLASS);
+        try {
+            return JkInit.instanceOf((Class<JkClass>) Class.forName(className));
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Build class " + className + " not found.", e);
+        }
+    }
+
+    static Path reportFile() {
+        return Paths.get(System.getProperty(REPORT_FILE));
+    }
+
+    /**
+     * Returns the specified non-public method, made accessible, so benchmarks can time plugin internals.
+     */
+    static Method method(Class<?> type, String name, Class<?>... parameterTypes) {
+        try {
+            Method method = type.getDeclaredMethod(name, parameterTypes);
+            method.setAccessible(true);
+            return method;
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("No method " + name + " in " + type.getName(), e);
+        }
+    }
+
+    static Object invoke(Method method, Object target, Object... args) {
+        try {
+            return method.invoke(target, args);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static String defClasspath() {
+        Set<String> entries = new LinkedHashSet<>();
+        for (ClassLoader classLoader = SonarBenchmarks.class.getClassLoader(); classLoader != null;
+             classLoader = classLoader.getParent()) {
+            if (classLoader instanceof URLClassLoader) {
+                for (URL url : ((URLClassLoader) classLoader).getURLs()) {
+                    try {
+                        entries.add(Paths.get(url.toURI()).toString());
+                    } catch (Exception e) {
+                        // Not a file : cannot be passed to a forked JVM
+                    }
+                }
+            }
+        }
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (!entry.isEmpty()) {
+                entries.add(entry);
+            }
+        }
+        return String.join(File.pathSeparator, entries);
+    }
+
+}
@@ -34,6 +34,9 @@ class Build extends JkClass {
                 .setSimpleLayout()
                 .setCompileDependencies(deps -> deps
                         .andFiles(JkLocator.getJekaJarPath())
+                )
+                .setTestDependencies(deps -> deps
+                        .and("org.junit.jupiter:junit-jupiter:5.7.2")
                 );
 
         java.getProject().getPublication().getMaven()
@@ -0,0 +1,148 @@
+package dev.jeka.plugins.sonarqube;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Timings of an analysis run : durations measured around the scanner (scanner jar lookup, library resolution,
+ * scanner startup...) and phase or sensor durations parsed live from scanner output lines as
+ * 'Sensor JavaSensor [java] (done) | time=1234ms'.
+ */
+final class AnalysisMetrics {
+
+    static final String REPORT_FILE = "jeka-analysis-report.json";
+
+    private static final Pattern DONE_LINE = Pattern.compile("(.+?) \\(done\\) \\| time=(\\d+)ms\\s*");
+
+    private static final String SENSOR_PREFIX = "Sensor ";
+
+    private static final int SUMMARY_SENSOR_COUNT = 5;
+
+    private final Instant start = Instant.now();
+
+    private final long startNanos = System.nanoTime();
+
+    private final Map<String, Long> durations = new LinkedHashMap<>();
+
+    private final Map<String, Long> phases = new LinkedHashMap<>();
+
+    private final Map<String, Long> sensors = new LinkedHashMap<>();
+
+    private long scannerStartNanos;
+
+    private boolean scannerRunning;
+
+    private boolean outputReceived;
+
+    synchronized void addDuration(String name, long millis) {
+        durations.merge(name, millis, Long::sum);
+    }
+
+    /**
+     * Marks the scanner launch, so the delay until its first output line is recorded as scanner startup.
+     */
+    synchronized void scannerLaunched() {
+        scannerStartNanos = System.nanoTime();
+        scannerRunning = true;
+    }
+
+    synchronized void scannerCompleted() {
+        addDuration("scannerRun", millisSince(scannerStartNanos));
+        scannerRunning = false;
+    }
+
+    synchronized void parse(String line) {
+        if (!outputReceived && scannerRunning) {
+            outputReceived = true;
+            addDuration("scannerStartup", millisSince(scannerStartNanos));
+        }
+        Matcher matcher = DONE_LINE.matcher(line);
+        if (!matcher.matches()) {
+            return;
+        }
+        String name = matcher.group(1).trim();
+        long millis = Long.parseLong(matcher.group(2));
+        if (name.startsWith(SENSOR_PREFIX)) {
+            sensors.merge(name.substring(SENSOR_PREFIX.length()), millis, Long::sum);
+        } else {
+            phases.merge(name, millis, Long::sum);
+        }
+    }
+
+    synchronized String summary() {
+        StringBuilder sb = new StringBuilder("Sonar analysis took ").append(seconds(millisSince(startNanos)));
+        durations.forEach((name, millis) -> sb.append(", ").append(name).append(' ').append(seconds(millis)));
+        List<Map.Entry<String, Long>> slowestSensors = sensors.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(SUMMARY_SENSOR_COUNT)
+                .collect(Collectors.toList());
+        if (!slowestSensors.isEmpty()) {
+            sb.append(". Slowest sensors : ").append(slowestSensors.stream()
+                    .map(entry -> entry.getKey() + ' ' + seconds(entry.getValue()))
+                    .collect(Collectors.joining(", ")));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes timings as JSON in the specified file. Failing to write it does not fail the analysis.
+     *
+     * @param logConsumer Receives messages along their level.
+     */
+    synchronized void writeReport(Path file, Map<String, String> attributes, BiConsumer<String, String> logConsumer) {
+        StringBuilder sb = new StringBuilder("{\n");
+        attributes.forEach((name, value) -> sb.append("  ").append(json(name)).append(": ").append(json(value))
+                .append(",\n"));
+        sb.append("  \"startedAt\": ").append(json(start.toString())).append(",\n");
+        sb.append("  \"totalMs\": ").append(millisSince(startNanos)).append(",\n");
+        sb.append("  \"durationsMs\": ").append(jsonObject(durations)).append(",\n");
+        sb.append("  \"phasesMs\": ").append(jsonObject(phases)).append(",\n");
+        sb.append("  \"sensorsMs\": ").append(jsonObject(sensors)).append("\n}\n");
+        try {
+            Files.createDirectories(file.getParent());
+            Files.write(file, sb.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            logConsumer.accept("Cannot write analysis report " + file + " : " + e.getMessage(), "WARN");
+        }
+    }
+
+    private static String jsonObject(Map<String, Long> values) {
+        if (values.isEmpty()) {
+            return "{}";
+        }
+        return values.entrySet().stream()
+                .map(entry -> "    " + json(entry.getKey()) + ": " + entry.getValue())
+                .collect(Collectors.joining(",\n", "{\n", "\n  }"));
+    }
+
+    static String json(String value) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private static long millisSince(long nanos) {
+        return (System.nanoTime() - nanos) / 1_000_000;
+    }
+
+    private static String seconds(long millis) {
+        return String.format(Locale.ROOT, "%.1fs", millis / 1000.0);
+    }
+
+}
@@ -0,0 +1,27 @@
+package dev.jeka.plugins.sonarqube;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * Keeps output lines along their level in memory, so output of an analysis running concurrently with
+ * other tasks can be flushed as a single block.
+ */
+final class BufferedOutput implements BiConsumer<String, String> {
+
+    private final List<String[]> lines = new ArrayList<>();
+
+    @Override
+    public synchronized void accept(String message, String level) {
+        lines.add(new String[] {message, level});
+    }
+
+    synchronized void flushTo(BiConsumer<String, String> target) {
+        for (String[] line : lines) {
+            target.accept(line[0], line[1]);
+        }
+        lines.clear();
+    }
+
+}
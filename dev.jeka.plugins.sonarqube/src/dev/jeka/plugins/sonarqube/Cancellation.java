@@ -0,0 +1,43 @@
+package dev.jeka.plugins.sonarqube;
+
+/**
+ * Cancel request of an analysis, shared between the analysis and the {@link JkSonarqube.RunHandle} controlling
+ * it. The request is recorded, so an analysis cancelled before its scanner is launched does not launch it,
+ * and an action registered after the request runs at once.
+ */
+final class Cancellation {
+
+    private Runnable action = () -> { };
+
+    private boolean requested;
+
+    /**
+     * Registers the action stopping the running scanner, replacing the previous one. Runs it immediately if
+     * cancel has already been requested.
+     */
+    synchronized void onCancel(Runnable action) {
+        this.action = action;
+        if (requested) {
+            action.run();
+        }
+    }
+
+    synchronized void cancel() {
+        requested = true;
+        action.run();
+    }
+
+    synchronized boolean isRequested() {
+        return requested;
+    }
+
+    /**
+     * @throws IllegalStateException if cancel has been requested.
+     */
+    void checkNotRequested() {
+        if (isRequested()) {
+            throw new IllegalStateException("Sonar analysis has been cancelled.");
+        }
+    }
+
+}
@@ -0,0 +1,73 @@
+package dev.jeka.plugins.sonarqube;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Finds source files modified since a git reference or since the last successful analysis, and turns
+ * them into <code>sonar.inclusions</code> patterns. Paths are compared once resolved with
+ * {@link Path#toRealPath}, as git reports paths under the real top level dir while the project base dir may be
+ * reached through a symbolic link.
+ */
+final class ChangedSources {
+
+    private ChangedSources() {
+    }
+
+    /**
+     * Returns the files changed in the working tree compared to the merge base of HEAD and the specified
+     * reference. Committed, uncommitted and untracked files are taken in account ; deleted ones are not.
+     */
+    static Set<Path> sinceGitRef(Path dir, String ref) {
+        Git git = Git.of(dir);
+        Path topLevel = realPath(Paths.get(git.execSingleLine("rev-parse", "--show-toplevel")));
+        String mergeBase = git.execSingleLine("merge-base", ref, "HEAD");
+        List<String> files = new ArrayList<>(git.exec("diff", "--name-only", "--diff-filter=ACMR", mergeBase));
+        files.addAll(git.exec("ls-files", "--others", "--exclude-standard", "--full-name"));
+        return files.stream()
+                .filter(name -> !name.trim().isEmpty())
+                .map(topLevel::resolve)
+                .filter(Files::isRegularFile)
+                .map(ChangedSources::realPath)
+                .collect(Collectors.toCollection(TreeSet::new));
+    }
+
+    /**
+     * Returns the files whose content differs from the one recorded in the specified index, updating
+     * the index along the way.
+     */
+    static Set<Path> sinceIndex(FileHashIndex index, Collection<Path> files) {
+        return index.updateAll(files).stream()
+                .map(ChangedSources::realPath)
+                .collect(Collectors.toCollection(TreeSet::new));
+    }
+
+    /**
+     * Returns comma separated patterns, relative to base dir, matching the specified files among the
+     * candidate ones, or <code>null</code> if none matches.
+     */
+    static String inclusions(Path baseDir, Set<Path> changedFiles, Collection<Path> candidates) {
+        Path realBaseDir = realPath(baseDir);
+        String result = candidates.stream()
+                .map(ChangedSources::realPath)
+                .filter(changedFiles::contains)
+                .map(path -> realBaseDir.relativize(path).toString().replace('\\', '/'))
+                .sorted()
+                .collect(Collectors.joining(","));
+        return result.isEmpty() ? null : result;
+    }
+
+    // Falls back to the absolute path for files that do not exist
+    private static Path realPath(Path path) {
+        try {
+            return path.toRealPath();
+        } catch (IOException e) {
+            return path.toAbsolutePath().normalize();
+        }
+    }
+
+}
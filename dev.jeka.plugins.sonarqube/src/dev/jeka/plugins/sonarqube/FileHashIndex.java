@@ -0,0 +1,159 @@
+package dev.jeka.plugins.sonarqube;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+
+/**
+ * Persistent index of file content hashes. A file is hashed again only if its size or last modification
+ * time differs from the indexed ones, so checking a large tree for changes stays cheap.
+ */
+final class FileHashIndex {
+
+    private static final String SEPARATOR = "\t";
+
+    private final Map<Path, Entry> entries;
+
+    private final BiConsumer<String, String> logConsumer;
+
+    private FileHashIndex(Map<Path, Entry> entries, BiConsumer<String, String> logConsumer) {
+        this.entries = entries;
+        this.logConsumer = logConsumer;
+    }
+
+    private static final class Entry {
+
+        final long size;
+
+        final long lastModified;
+
+        final String hash;
+
+        Entry(long size, long lastModified, String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Loads the index stored in the specified file. Returns an empty index if the file does not exist
+     * or cannot be read.
+     *
+     * @param logConsumer Receives messages along their level, when loading and saving the index.
+     */
+    static FileHashIndex load(Path indexFile, BiConsumer<String, String> logConsumer) {
+        Map<Path, Entry> entries = new ConcurrentHashMap<>();
+        if (Files.exists(indexFile)) {
+            try {
+                for (String line : Files.readAllLines(indexFile, StandardCharsets.UTF_8)) {
+                    String[] items = line.split(SEPARATOR, 4);
+                    if (items.length == 4) {
+                        entries.put(indexFile.getFileSystem().getPath(items[3]),
+                                new Entry(Long.parseLong(items[1]), Long.parseLong(items[2]), items[0]));
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                logConsumer.accept("Ignore unreadable file index " + indexFile + " : " + e, "DEBUG");
+                entries.clear();
+            }
+        }
+        return new FileHashIndex(entries, logConsumer);
+    }
+
+    /**
+     * Returns <code>true</code> if no file is indexed, as when the index file does not exist yet.
+     */
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Returns the content hash of the specified file, reusing the indexed one when size and last
+     * modification time are unchanged.
+     */
+    String hash(Path file) {
+        return refresh(file.toAbsolutePath().normalize()).hash;
+    }
+
+    /**
+     * Updates the index for the specified file and returns <code>true</code> if its content differs from the
+     * indexed one, or if it was not indexed.
+     */
+    boolean update(Path file) {
+        Path key = file.toAbsolutePath().normalize();
+        Entry previous = entries.get(key);
+        Entry current = refresh(key);
+        return previous == null || !previous.hash.equals(current.hash);
+    }
+
+    /**
+     * Updates the index for all specified files, hashing them in parallel, and returns the ones whose
+     * content has changed.
+     */
+    List<Path> updateAll(Collection<Path> files) {
+        return files.parallelStream()
+                .filter(this::update)
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Adds entries of the specified index for files not indexed in this one.
+     */
+    void mergeMissing(FileHashIndex other) {
+        other.entries.forEach(entries::putIfAbsent);
+    }
+
+    /**
+     * Writes this index in a temp file, then moves it atomically to the specified file, so concurrent readers
+     * never see a partially written index.
+     */
+    void save(Path indexFile) {
+        List<Path> paths = new ArrayList<>(entries.keySet());
+        Collections.sort(paths);
+        try {
+            Files.createDirectories(indexFile.toAbsolutePath().getParent());
+            Path tempFile = Files.createTempFile(indexFile.toAbsolutePath().getParent(), "index", ".tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                for (Path path : paths) {
+                    Entry entry = entries.get(path);
+                    writer.write(entry.hash + SEPARATOR + entry.size + SEPARATOR + entry.lastModified
+                            + SEPARATOR + path);
+                    writer.newLine();
+                }
+            }
+            Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logConsumer.accept("Cannot save file index " + indexFile + " : " + e.getMessage(), "WARN");
+        }
+    }
+
+    private Entry refresh(Path file) {
+        final BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read attributes of " + file, e);
+        }
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        Entry entry = entries.get(file);
+        if (entry != null && entry.size == size && entry.lastModified == lastModified) {
+            return entry;
+        }
+        Entry result = new Entry(size, lastModified, Checksums.of(file));
+        entries.put(file, result);
+        return result;
+    }
+
+}
@@ -0,0 +1,48 @@
+package dev.jeka.plugins.sonarqube;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Runs actions holding an exclusive lock on a file, so they exclude each other across threads and across
+ * processes sharing the Jeka cache. File locks are held on behalf of the whole JVM, so threads of this JVM
+ * are serialized by a monitor first.
+ */
+final class FileLocks {
+
+    private static final Map<Path, Object> MONITORS = new ConcurrentHashMap<>();
+
+    private FileLocks() {
+    }
+
+    static <T> T withLock(Path lockFile, Supplier<T> action) {
+        Path path = lockFile.toAbsolutePath().normalize();
+        synchronized (MONITORS.computeIfAbsent(path, key -> new Object())) {
+            try {
+                Files.createDirectories(path.getParent());
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE)) {
+                    channel.lock();  // Released when the channel is closed
+                    return action.get();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot lock " + path, e);
+            }
+        }
+    }
+
+    static void withLock(Path lockFile, Runnable action) {
+        withLock(lockFile, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+}
@@ -0,0 +1,112 @@
+package dev.jeka.plugins.sonarqube;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Runs the scanner-cli main class in a new JVM. Output lines are handed to a consumer along the level
+ * parsed from their prefix (e.g. 'INFO: '). Lines without prefix, such as stack trace lines, inherit the
+ * level of the previous line.<p>
+ * Secret properties are passed through the <code>SONARQUBE_SCANNER_PARAMS</code> environment variable, read by
+ * the scanner, so they appear neither on the command line nor in generated files.
+ */
+final class ForkedScanner {
+
+    private static final String MAIN_CLASS = "org.sonarsource.scanner.cli.Main";
+
+    private static final String PARAMS_ENV_VARIABLE = "SONARQUBE_SCANNER_PARAMS";
+
+    private static final String[] LEVELS = {"ERROR", "WARN", "INFO", "DEBUG", "TRACE"};
+
+    private final Path jar;
+
+    private final List<String> jvmOptions;
+
+    private final Cancellation cancellation;
+
+    /**
+     * @param jvmOptions Options passed to the scanner JVM, as heap size or class data sharing archive.
+     * @param cancellation Receives an action killing the scanner process once it is started.
+     */
+    ForkedScanner(Path jar, List<String> jvmOptions, Cancellation cancellation) {
+        this.jar = jar;
+        this.jvmOptions = jvmOptions;
+        this.cancellation = cancellation;
+    }
+
+    /**
+     * Runs the scanner and waits for its termination.
+     *
+     * @param secretProperties Properties passed through the environment rather than the command line.
+     * @throws IllegalStateException if the scanner exits with a non-zero code.
+     */
+    void execute(List<String> systemProperties, Map<String, String> secretProperties, List<String> args,
+                 BiConsumer<String, String> logConsumer) {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(jar.toString());
+        command.addAll(systemProperties);
+        command.add(MAIN_CLASS);
+        command.addAll(args);
+        logConsumer.accept(String.join(" ", command), "DEBUG");
+        ProcessBuilder processBuilder = new ProcessBuilder(command).redirectErrorStream(true);
+        if (!secretProperties.isEmpty()) {
+            processBuilder.environment().put(PARAMS_ENV_VARIABLE, toJson(secretProperties));
+        }
+        final int exitCode;
+        try {
+            Process process = processBuilder.start();
+            cancellation.onCancel(process::destroyForcibly);
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), Charset.defaultCharset()))) {
+                String level = "INFO";
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String lineLevel = levelOf(line);
+                    if (lineLevel != null) {
+                        level = lineLevel;
+                        line = line.substring(lineLevel.length() + 2);
+                    }
+                    logConsumer.accept(line, level);
+                }
+            }
+            exitCode = process.waitFor();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot launch sonar scanner.", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while running sonar scanner.", e);
+        }
+        if (exitCode != 0) {
+            throw new IllegalStateException("Sonar analysis failed with exit code " + exitCode + ".");
+        }
+    }
+
+    private static String toJson(Map<String, String> properties) {
+        StringBuilder sb = new StringBuilder("{");
+        properties.forEach((key, value) -> sb.append(sb.length() > 1 ? ", " : "").append(AnalysisMetrics.json(key))
+                .append(": ").append(AnalysisMetrics.json(value)));
+        return sb.append('}').toString();
+    }
+
+    private static String levelOf(String line) {
+        for (String level : LEVELS) {
+            if (line.startsWith(level) && line.startsWith(": ", level.length())) {
+                return level;
+            }
+        }
+        return null;
+    }
+
+}
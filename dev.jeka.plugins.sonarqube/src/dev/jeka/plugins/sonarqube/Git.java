@@ -0,0 +1,69 @@
+package dev.jeka.plugins.sonarqube;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Minimal git command line wrapper returning command output as lines.
+ */
+final class Git {
+
+    private final Path workingDir;
+
+    private Git(Path workingDir) {
+        this.workingDir = workingDir;
+    }
+
+    static Git of(Path workingDir) {
+        return new Git(workingDir);
+    }
+
+    /**
+     * Executes git with the specified arguments and returns its standard output lines.
+     *
+     * @throws IllegalStateException if git exits with a non-zero code.
+     */
+    List<String> exec(String... args) {
+        List<String> command = new ArrayList<>();
+        command.add("git");
+        command.addAll(Arrays.asList(args));
+        ProcessBuilder processBuilder = new ProcessBuilder(command)
+                .directory(workingDir.toFile())
+                .redirectErrorStream(true);
+        List<String> lines = new ArrayList<>();
+        try {
+            Process process = processBuilder.start();
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines.add(line);
+                }
+            }
+            int exitCode = process.waitFor();
+            if (exitCode != 0) {
+                throw new IllegalStateException("Command " + String.join(" ", command) + " failed in "
+                        + workingDir + " with exit code " + exitCode + " :\n" + String.join("\n", lines));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot execute " + String.join(" ", command), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while executing " + String.join(" ", command), e);
+        }
+        return lines;
+    }
+
+    String execSingleLine(String... args) {
+        List<String> lines = exec(args);
+        return lines.isEmpty() ? "" : lines.get(0).trim();
+    }
+
+}
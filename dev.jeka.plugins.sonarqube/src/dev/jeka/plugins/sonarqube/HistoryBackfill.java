@@ -0,0 +1,150 @@
+package dev.jeka.plugins.sonarqube;
+
+import dev.jeka.core.api.system.JkLog;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Checks out the commits of a git range, oldest first, in a pool of reusable git worktrees so they can be
+ * analysed one after the other. While a commit is analysed, next ones are checked out in the other worktrees.
+ * Worktrees are kept between runs, and only moved to the requested commit when reused.
+ */
+final class HistoryBackfill {
+
+    // Format accepted by 'sonar.projectDate'
+    private static final String DATE_FORMAT = "format:%Y-%m-%dT%H:%M:%S%z";
+
+    private static final String WORKTREE_PREFIX = "worktree-";
+
+    private final Path repoDir;
+
+    private final Path worktreesDir;
+
+    private final int worktreeCount;
+
+    HistoryBackfill(Path dir, Path worktreesDir, int worktreeCount) {
+        this.repoDir = Paths.get(Git.of(dir).execSingleLine("rev-parse", "--show-toplevel"));
+        this.worktreesDir = worktreesDir;
+        this.worktreeCount = Math.max(1, worktreeCount);
+    }
+
+    static final class Commit {
+
+        final String sha;
+
+        final String date;
+
+        Commit(String sha, String date) {
+            this.sha = sha;
+            this.date = date;
+        }
+    }
+
+    /**
+     * A commit checked out in a worktree, along a version describing it.
+     */
+    static final class Checkout {
+
+        final Commit commit;
+
+        final Path dir;
+
+        final String version;
+
+        private Checkout(Commit commit, Path dir, String version) {
+            this.commit = commit;
+            this.dir = dir;
+            this.version = version;
+        }
+    }
+
+    Path repoDir() {
+        return repoDir;
+    }
+
+    /**
+     * Returns the commits of the specified range following first parents, oldest first, as
+     * 'v1.0..HEAD' or 'HEAD~50..HEAD'.
+     */
+    List<Commit> commits(String range) {
+        List<Commit> result = new ArrayList<>();
+        for (String line : Git.of(repoDir).exec("log", "--reverse", "--first-parent", "--format=%H %cd",
+                "--date=" + DATE_FORMAT, range)) {
+            String[] items = line.trim().split(" ", 2);
+            if (items.length == 2) {
+                result.add(new Commit(items[0], items[1]));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Passes each commit, checked out, to the specified analysis, in order. Checkouts of next commits run
+     * concurrently to the analysis. Stops at the first failing analysis, as the server rejects analyses
+     * dated before the last one of a project.
+     */
+    void forEach(List<Commit> commits, Consumer<Checkout> analysis) {
+        ExecutorService executorService = Executors.newFixedThreadPool(worktreeCount, runnable -> {
+            Thread thread = new Thread(runnable, "sonar-backfill-checkout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<Future<Checkout>> checkouts = new ArrayList<>();
+        try {
+            for (int i = 0; i < commits.size(); i++) {
+                // A worktree is checked out again only once the analysis of its previous commit is done
+                while (checkouts.size() < Math.min(commits.size(), i + worktreeCount)) {
+                    int index = checkouts.size();
+                    Commit commit = commits.get(index);
+                    Path worktree = worktreesDir.resolve(WORKTREE_PREFIX + index % worktreeCount);
+                    checkouts.add(executorService.submit(() -> checkout(commit, worktree)));
+                }
+                Checkout checkout = checkouts.get(i).get();
+                JkLog.startTask("Analyse commit " + (i + 1) + "/" + commits.size() + " " + checkout.commit.sha
+                        + " (" + checkout.version + ", " + checkout.commit.date + ")");
+                analysis.accept(checkout);
+                JkLog.endTask();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while checking out commits.", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Cannot check out commit : " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    private Checkout checkout(Commit commit, Path worktree) {
+        if (Files.exists(worktree.resolve(".git"))) {
+            Git git = Git.of(worktree);
+            git.exec("checkout", "--quiet", "--force", "--detach", commit.sha);
+            git.exec("clean", "--quiet", "--force", "-d");
+        } else {
+            Git.of(repoDir).exec("worktree", "add", "--force", "--detach", worktree.toAbsolutePath().toString(),
+                    commit.sha);
+        }
+        String version = Git.of(worktree).execSingleLine("describe", "--tags", "--always", commit.sha);
+        return new Checkout(commit, worktree, version);
+    }
+
+    /**
+     * Removes worktrees of this backfill from the repository.
+     */
+    void removeWorktrees() {
+        for (int i = 0; i < worktreeCount; i++) {
+            Path worktree = worktreesDir.resolve(WORKTREE_PREFIX + i);
+            if (Files.exists(worktree.resolve(".git"))) {
+                Git.of(repoDir).exec("worktree", "remove", "--force", worktree.toAbsolutePath().toString());
+            }
+        }
+        Git.of(repoDir).exec("worktree", "prune");
+    }
+
+}
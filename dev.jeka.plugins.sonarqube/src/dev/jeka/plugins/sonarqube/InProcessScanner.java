@@ -0,0 +1,234 @@
+package dev.jeka.plugins.sonarqube;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Runs the sonar scanner within the current JVM, by invoking the <code>EmbeddedScanner</code> API
+ * shipped in the scanner-cli jar.<p>
+ * The scanner jar is loaded in a classloader isolated from the caller classpath. Classloaders are kept
+ * for the whole JVM lifetime so later analyses in the same session avoid reloading the scanner classes.<p>
+ * Started scanners are kept as well, one per set of global settings (server, credentials, user home), so the
+ * scanner engine and analyzers downloaded from the server stay loaded and JIT-compiled across analyses.
+ * Analyses sharing a started scanner run one after the other. Scanners dropped from the cache are stopped,
+ * releasing the classloader of their engine.<p>
+ * This class must not depend on Jeka classes as it is also used inside the scanner daemon JVM.
+ */
+final class InProcessScanner {
+
+    private static final String EMBEDDED_SCANNER_CLASS = "org.sonarsource.scanner.api.EmbeddedScanner";
+
+    private static final String LOG_OUTPUT_CLASS = "org.sonarsource.scanner.api.LogOutput";
+
+    private static final String APP_NAME = "ScannerJeka";
+
+    // Properties needed to start the scanner, as it downloads the scanner engine from the server
+    private static final List<String> GLOBAL_PROPERTIES = Arrays.asList("sonar.host.url", "sonar.login",
+            "sonar.password", "sonar.token", "sonar.userHome");
+
+    private static final int MAX_STARTED_SCANNERS = 4;
+
+    private static final Map<Path, ClassLoader> CLASSLOADERS = new ConcurrentHashMap<>();
+
+    // Least recently used started scanners are dropped beyond the limit
+    private static final Map<List<Object>, StartedScanner> STARTED_SCANNERS =
+            new LinkedHashMap<List<Object>, StartedScanner>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<List<Object>, StartedScanner> eldest) {
+                    if (size() <= MAX_STARTED_SCANNERS) {
+                        return false;
+                    }
+                    eldest.getValue().evict();
+                    return true;
+                }
+            };
+
+    private final ClassLoader classLoader;
+
+    private final String appVersion;
+
+    private InProcessScanner(ClassLoader classLoader, String appVersion) {
+        this.classLoader = classLoader;
+        this.appVersion = appVersion;
+    }
+
+    /**
+     * Returns a scanner backed by the specified scanner-cli jar. The underlying classloader is
+     * created once per jar then reused.
+     */
+    static InProcessScanner of(Path scannerJar, String appVersion) {
+        ClassLoader classLoader = CLASSLOADERS.computeIfAbsent(scannerJar.toAbsolutePath().normalize(),
+                InProcessScanner::isolatedClassloader);
+        return new InProcessScanner(classLoader, appVersion == null ? "embedded" : appVersion);
+    }
+
+    /**
+     * Runs an analysis using the specified properties. Keys are expected to be fully qualified
+     * (e.g. <code>sonar.projectKey</code>).
+     *
+     * @param logConsumer Receives each message emitted by the scanner along the level name
+     *                    (ERROR, WARN, INFO, DEBUG or TRACE).
+     * @throws IllegalStateException if the analysis fails.
+     */
+    void execute(Map<String, String> properties, BiConsumer<String, String> logConsumer) {
+        Map<String, String> globalProperties = new TreeMap<>();
+        Map<String, String> projectProperties = new HashMap<>(properties);
+        for (String key : GLOBAL_PROPERTIES) {
+            String value = projectProperties.remove(key);
+            if (value != null) {
+                globalProperties.put(key, value);
+            }
+        }
+        final StartedScanner startedScanner;
+        synchronized (STARTED_SCANNERS) {
+            startedScanner = STARTED_SCANNERS.computeIfAbsent(Arrays.asList(classLoader, appVersion,
+                    globalProperties), key -> new StartedScanner(globalProperties));
+        }
+        startedScanner.execute(projectProperties, logConsumer);
+    }
+
+    /*
+     * EmbeddedScanner bound to global settings. It is started on first analysis, then reused. As the scanner
+     * log output is set at creation, it forwards to the consumer of the running analysis.
+     */
+    private final class StartedScanner {
+
+        private final Map<String, String> globalProperties;
+
+        private volatile BiConsumer<String, String> logConsumer;
+
+        private Object scanner;
+
+        private Method executeMethod;
+
+        private boolean evicted;
+
+        StartedScanner(Map<String, String> globalProperties) {
+            this.globalProperties = globalProperties;
+        }
+
+        /*
+         * Called once this scanner is removed from the cache. The scanner is stopped at once if idle, otherwise
+         * once its running analysis completes. The caller holds the cache lock, so it must not wait here.
+         */
+        void evict() {
+            Thread thread = new Thread(() -> {
+                synchronized (this) {
+                    evicted = true;
+                    stop();
+                }
+            }, "sonar-scanner-stop");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        synchronized void execute(Map<String, String> projectProperties, BiConsumer<String, String> consumer) {
+            Thread thread = Thread.currentThread();
+            ClassLoader previousContextClassloader = thread.getContextClassLoader();
+            thread.setContextClassLoader(classLoader);
+            this.logConsumer = consumer;
+            try {
+                if (scanner == null) {
+                    start();
+                }
+                invoke(executeMethod, scanner, new HashMap<>(projectProperties));
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Cannot invoke sonar scanner API from " + classLoader, e);
+            } finally {
+                this.logConsumer = null;
+                thread.setContextClassLoader(previousContextClassloader);
+                if (evicted) {
+                    // Obtained from the cache before its eviction : nobody will reuse it
+                    stop();
+                }
+            }
+        }
+
+        /*
+         * EmbeddedScanner has no stop method : its engine is loaded in an isolated classloader held by the
+         * launcher, which is closed here so engine jars are released. Failures are ignored, as this only
+         * releases resources earlier than garbage collection would.
+         */
+        private void stop() {
+            if (scanner == null) {
+                return;
+            }
+            try {
+                Field launcherField = scanner.getClass().getDeclaredField("launcher");
+                launcherField.setAccessible(true);
+                Object launcher = launcherField.get(scanner);
+                if (launcher != null && Proxy.isProxyClass(launcher.getClass())) {
+                    Object handler = Proxy.getInvocationHandler(launcher);
+                    Field classLoaderField = handler.getClass().getDeclaredField("cl");
+                    classLoaderField.setAccessible(true);
+                    Object engineClassLoader = classLoaderField.get(handler);
+                    if (engineClassLoader instanceof Closeable) {
+                        ((Closeable) engineClassLoader).close();
+                    }
+                }
+            } catch (ReflectiveOperationException | IOException | RuntimeException e) {
+                // Left to garbage collection
+            } finally {
+                scanner = null;
+                executeMethod = null;
+            }
+        }
+
+        // Failing to start leaves this object unstarted, so next analysis tries again.
+        private void start() throws ReflectiveOperationException {
+            Class<?> scannerClass = classLoader.loadClass(EMBEDDED_SCANNER_CLASS);
+            Class<?> logOutputClass = classLoader.loadClass(LOG_OUTPUT_CLASS);
+            Object logOutput = Proxy.newProxyInstance(classLoader, new Class<?>[] {logOutputClass},
+                    (proxy, method, args) -> {
+                        if ("log".equals(method.getName())) {
+                            BiConsumer<String, String> consumer = logConsumer;
+                            if (consumer != null) {
+                                consumer.accept((String) args[0], String.valueOf(args[1]));
+                            }
+                            return null;
+                        }
+                        return method.invoke(this, args);  // Object methods
+                    });
+            Object newScanner = scannerClass.getMethod("create", String.class, String.class, logOutputClass)
+                    .invoke(null, APP_NAME, appVersion, logOutput);
+            invoke(scannerClass.getMethod("addGlobalProperties", Map.class), newScanner,
+                    new HashMap<>(globalProperties));
+            invoke(scannerClass.getMethod("start"), newScanner);
+            executeMethod = scannerClass.getMethod("execute", Map.class);
+            scanner = newScanner;
+        }
+    }
+
+    private static void invoke(Method method, Object target, Object... args) throws IllegalAccessException {
+        try {
+            method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            throw new IllegalStateException("Sonar analysis failed : " + cause.getMessage(), cause);
+        }
+    }
+
+    private static ClassLoader isolatedClassloader(Path jar) {
+        try {
+
+            // Parent is the platform classloader (ext classloader on JDK 8), so classes from the
+            // Jeka classpath cannot leak into the scanner.
+            return new URLClassLoader(new URL[] {jar.toUri().toURL()},
+                    ClassLoader.getSystemClassLoader().getParent());
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Cannot convert " + jar + " to URL", e);
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+package dev.jeka.plugins.sonarqube;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Fingerprint of every input of an analysis : properties, plus content of the files and directories
+ * referenced by path properties (sources, binaries, libraries and reports).<p>
+ * File hashes are kept in a {@link FileHashIndex} stored in the working directory, so only files
+ * whose size or modification time changed are hashed again. The fingerprint of the last successful
+ * analysis is stored next to it.
+ */
+final class InputFingerprint {
+
+    static final List<String> PATH_PROPERTIES = Collections.unmodifiableList(Arrays.asList(
+            JkSonarqube.SOURCES, JkSonarqube.TEST, JkSonarqube.BINARIES, JkSonarqube.JAVA_BINARIES,
+            JkSonarqube.LIBRARIES, JkSonarqube.JAVA_LIBRARIES, JkSonarqube.JAVA_TEST_LIBRARIES,
+            JkSonarqube.JAVA_TEST_BINARIES, JkSonarqube.JUNIT_REPORTS_PATH, JkSonarqube.SUREFIRE_REPORTS_PATH,
+            JkSonarqube.JACOCO_LEGACY_REPORTS_PATHS, JkSonarqube.JACOCO_XML_REPORTS_PATHS,
+            JkSonarqube.COVERTURA_REPORTS_PATH, JkSonarqube.CLOVER_REPORTS_PATH));
+
+    private static final String INDEX_FILE = "jeka-input-index.txt";
+
+    private static final String FINGERPRINT_FILE = "jeka-input-fingerprint.txt";
+
+    private final Path workingDir;
+
+    private final FileHashIndex index;
+
+    private final BiConsumer<String, String> logConsumer;
+
+    /**
+     * @param logConsumer Receives messages along their level.
+     */
+    InputFingerprint(Path workingDir, BiConsumer<String, String> logConsumer) {
+        this.workingDir = workingDir;
+        this.logConsumer = logConsumer;
+        this.index = FileHashIndex.load(workingDir.resolve(INDEX_FILE), logConsumer);
+    }
+
+    /**
+     * Computes the fingerprint of the specified properties. Relative paths are resolved against base dir.
+     */
+    String compute(Map<String, String> properties, Path baseDir) {
+        StringBuilder sb = new StringBuilder();
+        new TreeMap<>(properties).forEach((key, value) -> sb.append(key).append('=').append(value).append('\n'));
+        SortedSet<Path> files = new TreeSet<>();
+        for (String key : PATH_PROPERTIES) {
+            String value = properties.get(key);
+            if (value == null) {
+                continue;
+            }
+            for (String item : value.split(",")) {
+                if (item.trim().isEmpty()) {
+                    continue;
+                }
+                Path path = baseDir.resolve(Paths.get(item.trim())).normalize();
+                if (Files.exists(path)) {
+                    files.addAll(regularFiles(path));
+                } else {
+                    sb.append("missing:").append(path).append('\n');
+                }
+            }
+        }
+        Map<Path, String> hashes = files.parallelStream()
+                .collect(Collectors.toConcurrentMap(path -> path, index::hash));
+        files.forEach(path -> sb.append(path).append(':').append(hashes.get(path)).append('\n'));
+        return Checksums.of(sb.toString());
+    }
+
+    /**
+     * Returns <code>true</code> if the last analysis succeeded with the specified fingerprint.
+     */
+    boolean matchesLastSuccess(String fingerprint) {
+        Path file = workingDir.resolve(FINGERPRINT_FILE);
+        try {
+            return Files.exists(file)
+                    && fingerprint.equals(new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    void clearLastSuccess() {
+        try {
+            Files.deleteIfExists(workingDir.resolve(FINGERPRINT_FILE));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Stores the specified fingerprint as the one of the last successful analysis, along the file index.
+     * This must be called after the scanner ran, as it cleans the working directory.
+     */
+    void recordSuccess(String fingerprint) {
+        index.save(workingDir.resolve(INDEX_FILE));
+        try {
+            Files.createDirectories(workingDir);
+            Files.write(workingDir.resolve(FINGERPRINT_FILE), fingerprint.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            logConsumer.accept("Cannot record analysis fingerprint in " + workingDir + " : " + e.getMessage(),
+                    "WARN");
+        }
+    }
+
+    private static List<Path> regularFiles(Path path) {
+        if (Files.isRegularFile(path)) {
+            return Collections.singletonList(path);
+        }
+        try (Stream<Path> stream = Files.walk(path)) {
+            return stream.filter(Files::isRegularFile).collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot list files of " + path, e);
+        }
+    }
+
+}
@@ -2,25 +2,44 @@ package dev.jeka.plugins.sonarqube;
 
 import dev.jeka.core.api.depmanagement.JkDependencySet;
 import dev.jeka.core.api.depmanagement.JkModuleId;
+import dev.jeka.core.api.depmanagement.JkRepoSet;
 import dev.jeka.core.api.file.JkPathSequence;
 import dev.jeka.core.api.java.project.JkCompileLayout;
 import dev.jeka.core.api.java.project.JkJavaProject;
 import dev.jeka.core.api.java.project.JkJavaProjectConstruction;
 import dev.jeka.core.api.system.JkLog;
+import dev.jeka.core.api.utils.JkUtilsAssert;
 import dev.jeka.core.api.utils.JkUtilsString;
 import dev.jeka.core.tool.*;
 import dev.jeka.core.tool.builtins.java.JkPluginJava;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.HashMap;
-import java.util.Map;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
 
 @JkDoc("Run SonarQube analysis.")
 @JkDocPluginDeps(JkPluginJava.class)
 public class JkPluginSonarqube extends JkPlugin {
 
+    private static final String SOURCE_INDEX_FILE = "jeka-source-index.txt";
+
+    private static final String NO_MATCH_PATTERN = "jeka-no-changed-file";
+
+    private static final String OUTPUT_SPILL_FILE = "sonar-scanner-output.log.gz";
+
     private final Map<String, String> properties = new HashMap<>();
 
+    private CompletableFuture<JkSonarqubeQualityGate> qualityGate;
+
+    private JkSonarqube.RunHandle runHandle;
+
+    private PreparedAnalysis asyncAnalysis;
+
     @JkDoc("If false, no sonar analysis will be performed")
     public boolean enabled = true;
 
@@ -30,13 +49,188 @@ public class JkPluginSonarqube extends JkPlugin {
     @JkDoc("If true, the list of test dependency files will be provided to sonarqube")
     public boolean provideTestLibs = false;
 
+    @JkDoc("If true, resolved production and test library files are cached on disk, so next builds skip " +
+            "their resolution as long as dependencies and repositories are unchanged.")
+    public boolean cacheLibs = true;
+
+    @JkDoc("If true, only library jars containing a package referenced by compiled classes are provided to " +
+            "sonarqube. Referenced packages are read from class file constant pools, so classes must be compiled.")
+    public boolean pruneLibs = false;
+
+    @JkDoc("If true, JaCoCo XML reports are merged in a single file and JUnit XML reports aggregated in a single " +
+            "file before analysis. Outputs are reused as long as input reports are unchanged.")
+    public boolean consolidateReports = false;
+
+    @JkDoc("Comma separated JaCoCo XML reports to merge when 'consolidateReports' is true, relative to project base " +
+            "dir. A directory stands for the XML files it directly contains. If blank, output dir 'jacoco' is used.")
+    public String jacocoXmlReports;
+
+    @JkDoc("Comma separated directories containing JUnit XML reports to aggregate when 'consolidateReports' is " +
+            "true, relative to project base dir. If blank, the 'junit' dir of the test report dir is used.")
+    public String junitReportDirs;
+
+    @JkDoc("If true, generated, vendored, minified and oversized production source files are detected and " +
+            "excluded from analysis.")
+    public boolean excludeUnworthySources = false;
+
+    @JkDoc("Size, in KB, above which a source file is excluded when 'excludeUnworthySources' is true.")
+    public int maxSourceFileSize = 512;
+
+    @JkDoc("If false, generated source files detected when 'excludeUnworthySources' is true are only excluded " +
+            "from coverage, and still analysed for issues.")
+    public boolean excludeGeneratedFromAnalysis = true;
+
     @JkDoc("Version of the SonarQube client to run. It can be '+' for the latest one, at the price of a greater process time.\n" +
             "Use a blank string to use the client embedded in the plugin.")
     public String scannerVersion = "4.6.2.2472";
 
+    @JkDoc("Hours during which a scanner resolved for a dynamic version as '+' is reused without resolving it again.")
+    public int scannerCacheTtl = 24;
+
     @JkDoc("If true, displays sonarqube output on console")
     public boolean logOutput = false;
 
+    @JkDoc("If positive, the last scanner output lines, up to this number, are kept in memory and displayed only " +
+            "if analysis fails or if a line matches 'outputDumpPattern'.")
+    public int outputCaptureLines = 0;
+
+    @JkDoc("Maximum size, in K characters, of scanner output kept in memory when 'outputCaptureLines' is positive.")
+    public int outputCaptureSize = 1024;
+
+    @JkDoc("Regular expression which, found in a scanner output line, makes captured output be displayed.")
+    public String outputDumpPattern;
+
+    @JkDoc("If true, whole scanner output is also written to a gzip file in the output dir when it is captured. " +
+            "The file is kept only if captured output is displayed.")
+    public boolean outputSpill = false;
+
+    @JkDoc("FORK to run the scanner in a new JVM, IN_PROCESS to run it in the current JVM through an " +
+            "isolated classloader, saving JVM startup time. DAEMON to run it in a long-lived local JVM " +
+            "reused across Jeka invocations.")
+    public JkSonarqube.ExecutionMode executionMode = JkSonarqube.ExecutionMode.FORK;
+
+    @JkDoc("If true, the forked scanner receives its properties through a file rather than the command line. " +
+            "Useful when the list of libraries exceeds OS command line limits.")
+    public boolean usePropertiesFile = false;
+
+    @JkDoc("Max heap size of the scanner JVM (e.g. 2g). If blank, JVM default is used.")
+    public String scannerMaxHeap;
+
+    @JkDoc("Garbage collector of the scanner JVM (e.g. Serial, Parallel or G1). If blank, JVM default is used.")
+    public String scannerGc;
+
+    @JkDoc("If set between 0 and 4, limits JIT compilation of the scanner JVM to this tier. " +
+            "1 speeds up short analyses.")
+    public int scannerTieredStopAtLevel = -1;
+
+    @JkDoc("Additional options of the scanner JVM, separated with spaces.")
+    public String scannerJvmOptions;
+
+    @JkDoc("If true, the forked scanner JVM uses a class data sharing archive of scanner classes, created on " +
+            "first run for the current scanner and JDK. Requires JDK 13+.")
+    public boolean useClassDataSharing = false;
+
+    @JkDoc("Inactivity delay, in minutes, after which the scanner daemon stops by itself.")
+    public int daemonIdleTimeout = 30;
+
+    @JkDoc("If true, analysis is skipped when properties, sources, binaries, libraries and test reports are " +
+            "unchanged since the last successful analysis.")
+    public boolean skipIfUpToDate = false;
+
+    @JkDoc("If true, only source files changed since 'changedFilesBaseRef' are analysed. If no reference is " +
+            "specified, files changed since the last successful analysis are analysed. Combine with a branch or " +
+            "pull request analysis, otherwise unchanged files disappear from the server project.")
+    public boolean changedFilesOnly = false;
+
+    @JkDoc("Git reference (e.g. origin/master) changed files are computed against when 'changedFilesOnly' is true.")
+    public String changedFilesBaseRef;
+
+    @JkDoc("Name of the branch to analyse.")
+    public String branchName;
+
+    @JkDoc("Key of the pull request to analyse.")
+    public String pullRequestKey;
+
+    @JkDoc("Source branch of the pull request to analyse.")
+    public String pullRequestBranch;
+
+    @JkDoc("Target branch of the pull request to analyse. If blank, the server main branch is used.")
+    public String pullRequestBase;
+
+    @JkDoc("Maximum time, in seconds, #join waits for an analysis launched by #runAsync before cancelling it. " +
+            "0 means no limit.")
+    public int asyncTimeout = 0;
+
+    @JkDoc("If true, #run starts waiting for the server quality gate in background once analysis is uploaded. " +
+            "Use #joinQualityGate to wait for the result and fail if the quality gate is not passed.")
+    public boolean checkQualityGate = false;
+
+    @JkDoc("Maximum time, in seconds, to wait for the server to compute the quality gate.")
+    public int qualityGateTimeout = 300;
+
+    @JkDoc("Strategy used by #runAggregate. SINGLE_RUN analyses all projects as modules of a single scanner run. " +
+            "PARALLEL runs one analysis per project on a bounded worker pool.")
+    public AggregateStrategy aggregateStrategy = AggregateStrategy.SINGLE_RUN;
+
+    @JkDoc("Maximum number of analyses running concurrently with the PARALLEL aggregate strategy.")
+    public int aggregateParallelism = 2;
+
+    @JkDoc("Project key of the aggregate analysis with the SINGLE_RUN strategy. " +
+            "If blank, the base dir name of this Jeka class is used.")
+    public String aggregateProjectKey;
+
+    @JkDoc("Directory where the scanner stores analyzer plugins downloaded from the server (sonar.userHome). " +
+            "Relative to the base dir of this Jeka class. If blank, scanner default is used.")
+    public String userHome;
+
+    @JkDoc("Maximum size, in MB, of the scanner plugin cache. Least recently used plugins are evicted after each " +
+            "analysis to fit. 0 means unbounded.")
+    public int cacheSizeBudget = 0;
+
+    @JkDoc("If 'true' or 'false', enables or disables the analysis cache kept by the server to skip unchanged " +
+            "files. If blank, the server default applies.")
+    public String analysisCacheEnabled;
+
+    @JkDoc("Zip archive written by #exportCache and read by #importCache, relative to the base dir of this Jeka " +
+            "class.")
+    public String cacheArchive = JkConstants.OUTPUT_PATH + "/sonar-cache.zip";
+
+    @JkDoc("If not blank, analysis reports are queued in this directory, relative to the base dir of this Jeka " +
+            "class, instead of being submitted to the server. Use #uploadQueuedReports to submit them later.")
+    public String reportQueue;
+
+    @JkDoc("Maximum number of reports uploaded concurrently by #uploadQueuedReports.")
+    public int uploadConcurrency = 4;
+
+    @JkDoc("Number of attempts to upload a report before leaving it in queue for a later batch.")
+    public int uploadMaxAttempts = 5;
+
+    @JkDoc("Git range of commits analysed by #backfill, as 'v1.0..HEAD' or 'HEAD~100..HEAD'.")
+    public String backfillRange;
+
+    @JkDoc("Number of git worktrees #backfill checks commits out in, concurrently to the analysis.")
+    public int backfillWorktrees = 2;
+
+    @JkDoc("If false, git worktrees used by #backfill are removed once done. Otherwise they are reused by next " +
+            "backfills of the same repository.")
+    public boolean keepBackfillWorktrees = true;
+
+    /**
+     * Strategies to analyse several projects at once.
+     */
+    public enum AggregateStrategy {
+
+        /**
+         * All projects are analysed in a single scanner run, each project being a module of an aggregate project.
+         */
+        SINGLE_RUN,
+
+        /**
+         * Each project is analysed separately, several analyses running concurrently.
+         */
+        PARALLEL
+    }
+
     protected JkPluginSonarqube(JkClass jkClass) {
         super(jkClass);
     }
@@ -45,13 +239,26 @@ public class JkPluginSonarqube extends JkPlugin {
         final JkCompileLayout prodLayout = project.getConstruction().getCompilation().getLayout();
         final JkCompileLayout testLayout = project.getConstruction().getTesting().getCompilation().getLayout();
         final Path baseDir = project.getBaseDir();
-        JkPathSequence libs = JkPathSequence.of();
         JkJavaProjectConstruction construction = project.getConstruction();
+        long resolutionStart = System.nanoTime();
+        LibraryResolutionCache libraryResolutionCache = new LibraryResolutionCache(cacheLibs);
+        List<String> names = new ArrayList<>();
+        List<JkDependencySet> depSets = new ArrayList<>();
         if (provideProductionLibs) {
-            JkDependencySet deps = construction.getCompilation().getDependencies()
-                    .merge(construction.getRuntimeDependencies()).getResult();
-            libs = project.getConstruction().getDependencyResolver().resolve(deps).getFiles();
+            names.add("production");
+            depSets.add(construction.getCompilation().getDependencies()
+                    .merge(construction.getRuntimeDependencies()).getResult());
+        }
+        if (provideTestLibs) {
+            names.add("test");
+            depSets.add(construction.getTesting().getCompilation().getDependencies());
         }
+        List<JkPathSequence> resolved = libraryResolutionCache.resolveAll(construction.getDependencyResolver(),
+                names, depSets);
+        JkPathSequence libs = provideProductionLibs ?
+                pruneLibs(resolved.get(0), prodLayout.resolveClassDir()) : JkPathSequence.of();
+        JkPathSequence testLibs = provideTestLibs ?
+                pruneLibs(resolved.get(resolved.size() - 1), testLayout.resolveClassDir()) : null;
         final Path testReportDir = project.getConstruction().getTesting().getReportDir();
         JkModuleId moduleId = project.getPublication().getModuleId();
         if (moduleId == null) {
@@ -61,22 +268,16 @@ public class JkPluginSonarqube extends JkPlugin {
         final String version = project.getPublication().getVersion();
         final String fullName = moduleId.getDotedName();
         final String name = moduleId.getName();
-        final JkSonarqube sonarqube;
-        if (JkUtilsString.isBlank(scannerVersion)) {
-            sonarqube = JkSonarqube.ofEmbedded();
-        } else {
-            sonarqube = JkSonarqube.ofVersion(project.getConstruction().getDependencyResolver().getRepos(),
-                    scannerVersion);
-        }
+        final JkSonarqube sonarqube = newSonarqube(project.getConstruction().getDependencyResolver().getRepos(),
+                project.getOutputDir());
         sonarqube
-                .setLogOutput(logOutput)
                 .setProjectId(fullName, name, version)
                 .setProperties(JkOptions.getAllStartingWith("sonar."))
                 .setProjectBaseDir(baseDir)
                 .setBinaries(project.getConstruction().getCompilation().getLayout().resolveClassDir())
                 .setProperty(JkSonarqube.SOURCES, prodLayout.resolveSources().getRootDirsOrZipFiles())
                 .setProperty(JkSonarqube.TEST, testLayout.resolveSources().getRootDirsOrZipFiles())
-                .setProperty(JkSonarqube.WORKING_DIRECTORY, baseDir.resolve(JkConstants.JEKA_DIR + "/.sonar").toString())
+                .setProperty(JkSonarqube.WORKING_DIRECTORY, workingDir(project).toString())
                 .setProperty(JkSonarqube.JUNIT_REPORTS_PATH,
                         baseDir.relativize( testReportDir.resolve("junit")).toString())
                 .setProperty(JkSonarqube.SUREFIRE_REPORTS_PATH,
@@ -86,25 +287,539 @@ public class JkPluginSonarqube extends JkPlugin {
                     baseDir.relativize(project.getOutputDir().resolve("jacoco/jacoco.xml")).toString())
                 .setProperty(JkSonarqube.JAVA_LIBRARIES, libs)
                 .setProperty(JkSonarqube.JAVA_TEST_BINARIES, testLayout.getClassDirPath());
-        if (provideTestLibs) {
-            JkDependencySet deps = construction.getTesting().getCompilation().getDependencies();
-            JkPathSequence testLibs = project.getConstruction().getDependencyResolver().resolve(deps).getFiles();
+        if (testLibs != null) {
             sonarqube.setProperty(JkSonarqube.JAVA_TEST_LIBRARIES, testLibs);
         }
+        sonarqube.addPreparationDuration("resolveLibraries", millisSince(resolutionStart));
+        if (consolidateReports) {
+            long start = System.nanoTime();
+            consolidateReports(project, sonarqube);
+            sonarqube.addPreparationDuration("consolidateReports", millisSince(start));
+        }
+        if (excludeUnworthySources) {
+            long start = System.nanoTime();
+            excludeUnworthySources(baseDir, prodLayout.resolveSources().getRootDirsOrZipFiles(), sonarqube);
+            sonarqube.addPreparationDuration("classifySources", millisSince(start));
+        }
+        return sonarqube;
+    }
+
+    private static long millisSince(long nanos) {
+        return (System.nanoTime() - nanos) / 1_000_000;
+    }
+
+    private void excludeUnworthySources(Path baseDir, List<Path> sourceRoots, JkSonarqube sonarqube) {
+        Path cacheDir = ScannerJarCache.CACHE_DIR.resolve("source-classification")
+                .resolve(Checksums.of(baseDir.toAbsolutePath().toString()));
+        SourceClassifier.Result result = new SourceClassifier(cacheDir, maxSourceFileSize * 1024L)
+                .classify(sourceRoots);
+        Set<SourceClassifier.Reason> excludedReasons = EnumSet.allOf(SourceClassifier.Reason.class);
+        if (!excludeGeneratedFromAnalysis) {
+            excludedReasons.remove(SourceClassifier.Reason.GENERATED);
+            appendPatterns(sonarqube, JkSonarqube.COVERAGE_EXCLUSIONS,
+                    result.patterns(baseDir, EnumSet.of(SourceClassifier.Reason.GENERATED)));
+        }
+        appendPatterns(sonarqube, JkSonarqube.EXCLUSIONS, result.patterns(baseDir, excludedReasons));
+        // Generated files are detected by heuristics, so they are listed. Others are listed in verbose mode.
+        result.excludedFiles().forEach((file, reason) -> {
+            String message = "Exclude " + baseDir.toAbsolutePath().relativize(file) + " (" + reason + ")";
+            if (reason == SourceClassifier.Reason.GENERATED) {
+                JkLog.info(message);
+            } else {
+                JkLog.trace(message);
+            }
+        });
+        JkLog.info(result.summary());
+    }
+
+    private static void appendPatterns(JkSonarqube sonarqube, String key, List<String> patterns) {
+        if (patterns.isEmpty()) {
+            return;
+        }
+        String existing = sonarqube.getProperties().get(key);
+        String joined = String.join(",", patterns);
+        sonarqube.setProperty(key, JkUtilsString.isBlank(existing) ? joined : existing + "," + joined);
+    }
+
+    // Consolidated reports are written in the project output dir, as the scanner cleans its working dir.
+    private void consolidateReports(JkJavaProject project, JkSonarqube sonarqube) {
+        Path baseDir = project.getBaseDir();
+        ReportConsolidator consolidator = new ReportConsolidator(project.getOutputDir().resolve("sonar-reports"));
+        List<Path> jacocoReports = reportFiles(baseDir, jacocoXmlReports, project.getOutputDir().resolve("jacoco"),
+                false);
+        if (!jacocoReports.isEmpty()) {
+            Path mergedReport = consolidator.mergeJacoco(jacocoReports);
+            sonarqube.setProperty(JkSonarqube.JACOCO_XML_REPORTS_PATHS, baseDir.relativize(mergedReport).toString());
+        }
+        List<Path> junitReports = reportFiles(baseDir, junitReportDirs,
+                project.getConstruction().getTesting().getReportDir().resolve("junit"), true);
+        if (!junitReports.isEmpty()) {
+            String junitDir = baseDir.relativize(consolidator.aggregateJunit(junitReports)).toString();
+            sonarqube
+                    .setProperty(JkSonarqube.JUNIT_REPORTS_PATH, junitDir)
+                    .setProperty(JkSonarqube.SUREFIRE_REPORTS_PATH, junitDir);
+        }
+        consolidator.saveIndex();
+    }
+
+    private static List<Path> reportFiles(Path baseDir, String paths, Path defaultPath, boolean recursive) {
+        if (JkUtilsString.isBlank(paths)) {
+            return ReportConsolidator.xmlFiles(defaultPath, recursive);
+        }
+        List<Path> result = new ArrayList<>();
+        for (String path : paths.split(",")) {
+            if (!path.trim().isEmpty()) {
+                result.addAll(ReportConsolidator.xmlFiles(baseDir.resolve(path.trim()), recursive));
+            }
+        }
+        return result;
+    }
+
+    private JkPathSequence pruneLibs(JkPathSequence libs, Path classDir) {
+        if (!pruneLibs) {
+            return libs;
+        }
+        return JkPathSequence.of(LibraryPruner.prune(libs, Collections.singletonList(classDir),
+                JkSonarqube::logToJkLog));
+    }
+
+    private void configureCache(JkSonarqube sonarqube) {
+        if (!JkUtilsString.isBlank(userHome)) {
+            sonarqube.setUserHome(getJkClass().getBaseDir().resolve(userHome.trim()));
+        }
+        if (!JkUtilsString.isBlank(analysisCacheEnabled)) {
+            sonarqube.setAnalysisCacheEnabled(Boolean.parseBoolean(analysisCacheEnabled.trim()));
+        }
+    }
+
+    // Creates a JkSonarqube configured with settings of this plugin which are not specific to a project.
+    private JkSonarqube newSonarqube(JkRepoSet repos, Path outputDir) {
+        final JkSonarqube sonarqube;
+        if (JkUtilsString.isBlank(scannerVersion)) {
+            sonarqube = JkSonarqube.ofEmbedded();
+        } else {
+            sonarqube = JkSonarqube.ofVersion(repos, scannerVersion);
+        }
+        sonarqube
+                .setLogOutput(logOutput)
+                .setExecutionMode(executionMode)
+                .setUsePropertiesFile(usePropertiesFile)
+                .setSkipIfUpToDate(skipIfUpToDate)
+                .setDaemonIdleTimeout(daemonIdleTimeout * 60)
+                .setScannerCacheTtl(Duration.ofHours(scannerCacheTtl))
+                .setUseClassDataSharing(useClassDataSharing)
+                .setCacheSizeBudget(cacheSizeBudget * 1024L * 1024L);
+        configureCache(sonarqube);
+        if (!JkUtilsString.isBlank(reportQueue)) {
+            sonarqube.setReportQueue(reportQueueDir());
+        }
+        if (outputCaptureLines > 0) {
+            sonarqube
+                    .setOutputCapture(outputCaptureLines, outputCaptureSize * 1024)
+                    .setOutputDumpPattern(JkUtilsString.isBlank(outputDumpPattern) ? null : outputDumpPattern);
+            if (outputSpill) {
+                sonarqube.setOutputSpillFile(outputDir.resolve(OUTPUT_SPILL_FILE));
+            }
+        }
+        if (!JkUtilsString.isBlank(scannerMaxHeap)) {
+            sonarqube.setScannerMaxHeap(scannerMaxHeap.trim());
+        }
+        if (!JkUtilsString.isBlank(scannerGc)) {
+            sonarqube.setScannerGc(scannerGc.trim());
+        }
+        if (scannerTieredStopAtLevel >= 0) {
+            sonarqube.setScannerTieredStopAtLevel(scannerTieredStopAtLevel);
+        }
+        if (!JkUtilsString.isBlank(scannerJvmOptions)) {
+            sonarqube.addScannerJvmOptions(scannerJvmOptions.trim().split("\\s+"));
+        }
+        if (!JkUtilsString.isBlank(branchName)) {
+            sonarqube.setBranch(branchName);
+        }
+        if (!JkUtilsString.isBlank(pullRequestKey)) {
+            sonarqube.setPullRequest(pullRequestKey, pullRequestBranch,
+                    JkUtilsString.isBlank(pullRequestBase) ? null : pullRequestBase);
+        }
         return sonarqube;
     }
 
+    private static Path workingDir(JkJavaProject project) {
+        return project.getBaseDir().resolve(JkConstants.JEKA_DIR + "/.sonar");
+    }
+
+    /*
+     * Restricts analysis to changed source files. Changes are computed against the specified index, or
+     * against the git base ref if index is null. Returns false if no source file has changed.
+     * An empty index means no analysis has completed yet : all files are analysed and the index is filled
+     * as the baseline of next analyses.
+     */
+    private boolean restrictToChangedFiles(JkJavaProject project, JkSonarqube sonarqube, FileHashIndex index) {
+        final Path baseDir = project.getBaseDir();
+        List<Path> prodFiles = project.getConstruction().getCompilation().getLayout().resolveSources().getFiles();
+        List<Path> testFiles = project.getConstruction().getTesting().getCompilation().getLayout()
+                .resolveSources().getFiles();
+        final Set<Path> changedFiles;
+        if (index != null) {
+            List<Path> allFiles = new ArrayList<>(prodFiles);
+            allFiles.addAll(testFiles);
+            if (index.isEmpty()) {
+                index.updateAll(allFiles);
+                JkLog.info("No previous analysis found. All source files are analysed.");
+                return true;
+            }
+            changedFiles = ChangedSources.sinceIndex(index, allFiles);
+            JkLog.info(changedFiles.size() + " source file(s) changed since last analysis.");
+        } else {
+            changedFiles = ChangedSources.sinceGitRef(baseDir, changedFilesBaseRef);
+            JkLog.info(changedFiles.size() + " file(s) changed since " + changedFilesBaseRef + ".");
+        }
+        String inclusions = ChangedSources.inclusions(baseDir, changedFiles, prodFiles);
+        String testInclusions = ChangedSources.inclusions(baseDir, changedFiles, testFiles);
+        if (inclusions == null && testInclusions == null) {
+            return false;
+        }
+        Map<String, String> props = sonarqube.getProperties();
+        if (!props.containsKey(JkSonarqube.PULL_REQUEST_KEY) && !props.containsKey(JkSonarqube.BRANCH_NAME)) {
+            JkLog.warn("Analysing only changed files without branch nor pull request. Server project will " +
+                    "only contain changed files.");
+        }
+
+        // An empty inclusion means 'include all', so a pattern matching nothing is used instead.
+        sonarqube
+                .setProperty(JkSonarqube.INCLUSIONS, inclusions == null ? NO_MATCH_PATTERN : inclusions)
+                .setProperty(JkSonarqube.TEST_INCLUSIONS, testInclusions == null ? NO_MATCH_PATTERN : testInclusions);
+        return true;
+    }
+
+    @JkDoc("Writes the scanner plugin cache in 'cacheArchive', so CI cache steps can save it as a single file.")
+    public void exportCache() {
+        JkSonarqube sonarqube = JkSonarqube.ofEmbedded();
+        configureCache(sonarqube);
+        sonarqube.exportCache(getJkClass().getBaseDir().resolve(cacheArchive));
+    }
+
+    @JkDoc("Restores the scanner plugin cache from 'cacheArchive', if it exists.")
+    public void importCache() {
+        JkSonarqube sonarqube = JkSonarqube.ofEmbedded();
+        configureCache(sonarqube);
+        sonarqube.importCache(getJkClass().getBaseDir().resolve(cacheArchive));
+    }
+
+    @JkDoc("Submits reports queued in 'reportQueue' to the server set with 'sonar.host.url' option, " +
+            "retrying on network errors and server overload. Fails if some reports could not be submitted.")
+    public void uploadQueuedReports() {
+        JkUtilsAssert.state(!JkUtilsString.isBlank(reportQueue), "No report queue defined. Set 'reportQueue' option.");
+        JkLog.startTask("Upload queued sonar reports");
+        int notUploaded = JkSonarqube.ofEmbedded()
+                .setProperties(JkOptions.getAllStartingWith("sonar."))
+                .setProperties(properties)
+                .uploadQueuedReports(reportQueueDir(), uploadConcurrency, uploadMaxAttempts);
+        JkLog.endTask();
+        JkUtilsAssert.state(notUploaded == 0, "%s sonar report(s) could not be uploaded.", notUploaded);
+    }
+
+    private Path reportQueueDir() {
+        return getJkClass().getBaseDir().resolve(reportQueue.trim());
+    }
+
     @JkDoc("Runs sonar qube analysis based on properties defined in this plugin. " +
             "Options prefixed set 'sonar.' as '-sonar.host.url=http://myserver/..' " +
             "will be appended to sonarQube properties.")
     public void run() {
+        PreparedAnalysis analysis = prepareAnalysis();
+        if (analysis != null) {
+            analysis.sonarqube.run();
+            completeAnalysis(analysis);
+        }
+    }
+
+    @JkDoc("Same as #run, but analysis runs in background so next tasks, as packaging or publishing, can run " +
+            "meanwhile. Use #join to wait for its completion.")
+    public void runAsync() {
+        PreparedAnalysis analysis = prepareAnalysis();
+        if (analysis != null) {
+            runHandle = analysis.sonarqube.runAsync();
+            asyncAnalysis = analysis;
+        }
+    }
+
+    @JkDoc("Waits for the analysis launched by #runAsync, displays its output and fails if it has failed " +
+            "or if it does not complete within 'asyncTimeout' seconds.")
+    public void join() {
+        if (runHandle == null) {
+            JkLog.info("No sonar analysis running in background.");
+            return;
+        }
+        JkSonarqube.RunHandle handle = runHandle;
+        runHandle = null;
+        handle.join(asyncTimeout > 0 ? Duration.ofSeconds(asyncTimeout) : null);
+        completeAnalysis(asyncAnalysis);
+    }
+
+    @JkDoc({"Analyses each commit of 'backfillRange', oldest first, with its commit date as analysis date, so " +
+            "a new server project gets history. Commits are checked out in reusable git worktrees and analysed by a " +
+            "single reused scanner (in-process or daemon).",
+            "Libraries are the ones of the current project, and historical classes are not compiled, so rules " +
+            "relying on bytecode are less accurate. The server rejects analyses dated before the last analysis " +
+            "of the project, so backfill must happen before any other analysis of the branch."})
+    public void backfill() {
+        JkUtilsAssert.state(!JkUtilsString.isBlank(backfillRange), "No commit range defined. Set 'backfillRange'.");
+        JkJavaProject project = getJkClass().getPlugins().get(JkPluginJava.class).getProject();
+        Path baseDir = project.getBaseDir().toAbsolutePath().normalize();
+        Path worktreesDir = ScannerJarCache.CACHE_DIR.resolve("backfill").resolve(Checksums.of(baseDir.toString()));
+        HistoryBackfill backfill = new HistoryBackfill(baseDir, worktreesDir, backfillWorktrees);
+        List<HistoryBackfill.Commit> commits = backfill.commits(backfillRange.trim());
+        if (commits.isEmpty()) {
+            JkLog.info("No commit in range " + backfillRange + ".");
+            return;
+        }
+        String projectPath = backfill.repoDir().relativize(realPath(baseDir)).toString();
+        JkSonarqube.ExecutionMode mode = executionMode == JkSonarqube.ExecutionMode.FORK ?
+                JkSonarqube.ExecutionMode.DAEMON : executionMode;
+        Map<String, String> template = historicalProperties(createConfiguredSonarqube(project)
+                .setProperties(properties).getProperties());
+        Path workingDir = worktreesDir.resolve("work");
+        Path emptyBinaries = worktreesDir.resolve("no-classes");
+        try {
+            Files.createDirectories(emptyBinaries);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        JkRepoSet repos = project.getConstruction().getDependencyResolver().getRepos();
+        JkLog.startTask("Backfill " + commits.size() + " commits of " + backfillRange);
+        try {
+            backfill.forEach(commits, checkout -> {
+                Path projectDir = checkout.dir.resolve(projectPath);
+                String sources = existingPaths(projectDir, template.get(JkSonarqube.SOURCES));
+                if (sources.isEmpty()) {
+                    JkLog.warn("No source dir at commit " + checkout.commit.sha + ". Skipped.");
+                    return;
+                }
+                newSonarqube(repos, project.getOutputDir())
+                        .setExecutionMode(mode)
+                        .setSkipIfUpToDate(false)
+                        .setProperties(template)
+                        .setProjectBaseDir(projectDir)
+                        .setProperty(JkSonarqube.PROJECT_VERSION, checkout.version)
+                        .setProperty(JkSonarqube.PROJECT_DATE, checkout.commit.date)
+                        .setProperty(JkSonarqube.SOURCES, sources)
+                        .setProperty(JkSonarqube.TEST, existingPaths(projectDir, template.get(JkSonarqube.TEST)))
+                        .setProperty(JkSonarqube.WORKING_DIRECTORY, workingDir.toString())
+                        .setProperty(JkSonarqube.BINARIES, emptyBinaries.toString())
+                        .setProperty(JkSonarqube.JAVA_BINARIES, emptyBinaries.toString())
+                        .setProperty(JkSonarqube.JAVA_TEST_BINARIES, emptyBinaries.toString())
+                        .run();
+            });
+        } finally {
+            if (!keepBackfillWorktrees) {
+                backfill.removeWorktrees();
+            }
+        }
+        JkLog.endTask();
+    }
+
+    // Test and coverage reports of the current build do not apply to past commits.
+    private static Map<String, String> historicalProperties(Map<String, String> current) {
+        Map<String, String> result = new HashMap<>(current);
+        Arrays.asList(JkSonarqube.JUNIT_REPORTS_PATH, JkSonarqube.SUREFIRE_REPORTS_PATH,
+                JkSonarqube.JACOCO_XML_REPORTS_PATHS, JkSonarqube.JACOCO_LEGACY_REPORTS_PATHS)
+                .forEach(result::remove);
+        return result;
+    }
+
+    // Keeps comma separated paths, relative to the specified dir, which exist in it.
+    private static String existingPaths(Path dir, String paths) {
+        if (JkUtilsString.isBlank(paths)) {
+            return "";
+        }
+        return Arrays.stream(paths.split(","))
+                .map(String::trim)
+                .filter(path -> !path.isEmpty() && Files.exists(dir.resolve(path)))
+                .collect(Collectors.joining(","));
+    }
+
+    private static Path realPath(Path path) {
+        try {
+            return path.toRealPath();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot resolve " + path, e);
+        }
+    }
+
+    // Returns null if no analysis has to be performed.
+    private PreparedAnalysis prepareAnalysis() {
         if (!enabled) {
             JkLog.info("Sonarqube analysis has been disabled. No analysis will be performed.");
-            return;
+            return null;
         }
         JkJavaProject project = getJkClass().getPlugins().get(JkPluginJava.class).getProject();
         JkSonarqube sonarqube = createConfiguredSonarqube(project).setProperties(properties);
-        sonarqube.run();
+        FileHashIndex sourceIndex = changedFilesOnly && JkUtilsString.isBlank(changedFilesBaseRef) ?
+                FileHashIndex.load(workingDir(project).resolve(SOURCE_INDEX_FILE), JkSonarqube::logToJkLog) : null;
+        if (changedFilesOnly && !restrictToChangedFiles(project, sonarqube, sourceIndex)) {
+            JkLog.info("No source file has changed. No analysis will be performed.");
+            return null;
+        }
+        return new PreparedAnalysis(project, sonarqube, sourceIndex);
+    }
+
+    private void completeAnalysis(PreparedAnalysis analysis) {
+        if (analysis.sourceIndex != null) {
+            analysis.sourceIndex.save(workingDir(analysis.project).resolve(SOURCE_INDEX_FILE));
+        }
+        requestQualityGate(analysis.sonarqube);
+    }
+
+    // Starts polling the quality gate of the completed analysis, so #joinQualityGate can wait for it.
+    private void requestQualityGate(JkSonarqube sonarqube) {
+        if (!checkQualityGate) {
+            return;
+        }
+        if (!JkUtilsString.isBlank(reportQueue)) {
+            JkLog.warn("Quality gate is not checked as analysis report has been queued.");
+            return;
+        }
+        qualityGate = sonarqube.getQualityGateAsync(Duration.ofSeconds(qualityGateTimeout));
+    }
+
+    @JkDoc("Waits for the quality gate of the analysis launched by #run, or by #runAggregate with the SINGLE_RUN " +
+            "strategy, and fails if it is not passed. " +
+            "Requires 'checkQualityGate' to be true.")
+    public void joinQualityGate() {
+        if (qualityGate == null) {
+            JkLog.info("No quality gate to wait for : analysis has not been run or 'checkQualityGate' is false.");
+            return;
+        }
+        JkLog.startTask("Wait for sonar quality gate");
+        final JkSonarqubeQualityGate result;
+        try {
+            result = qualityGate.join();
+        } catch (CompletionException e) {
+            throw new IllegalStateException("Cannot get sonar quality gate : " + e.getCause().getMessage(),
+                    e.getCause());
+        }
+        JkLog.info(result.toString());
+        JkLog.endTask();
+        JkUtilsAssert.state(result.isPassed(), "Sonar quality gate failed. See %s", result.getDashboardUrl());
+    }
+
+    /**
+     * Runs analysis of the specified projects according the aggregate strategy defined in this plugin.
+     * With the SINGLE_RUN strategy, projects are analysed as modules of a project whose base dir is the one
+     * of this Jeka class.
+     */
+    public void runAggregate(List<JkJavaProject> projects) {
+        if (!enabled) {
+            JkLog.info("Sonarqube analysis has been disabled. No analysis will be performed.");
+            return;
+        }
+        JkUtilsAssert.argument(!projects.isEmpty(), "No project to analyse.");
+        if (aggregateStrategy == AggregateStrategy.SINGLE_RUN) {
+            runAsModules(projects);
+        } else {
+            runInParallel(projects);
+        }
+    }
+
+    private void runAsModules(List<JkJavaProject> projects) {
+        final Path baseDir = getJkClass().getBaseDir();
+        final String projectKey = JkUtilsString.isBlank(aggregateProjectKey) ?
+                baseDir.getFileName().toString() : aggregateProjectKey;
+        JkJavaProject firstProject = projects.get(0);
+        JkSonarqube sonarqube = newSonarqube(firstProject.getConstruction().getDependencyResolver().getRepos(),
+                baseDir.resolve(JkConstants.OUTPUT_PATH))
+                .setProjectId(projectKey, projectKey, firstProject.getPublication().getVersion())
+                .setProperties(JkOptions.getAllStartingWith("sonar."))
+                .setProjectBaseDir(baseDir)
+                .setProperty(JkSonarqube.WORKING_DIRECTORY, baseDir.resolve(JkConstants.JEKA_DIR + "/.sonar").toString());
+        for (JkJavaProject project : projects) {
+            sonarqube.addModule(moduleKey(project), createConfiguredSonarqube(project));
+        }
+        sonarqube.setProperties(properties).run();
+        requestQualityGate(sonarqube);
+    }
+
+    private void runInParallel(List<JkJavaProject> projects) {
+        if (executionMode == JkSonarqube.ExecutionMode.IN_PROCESS) {
+            JkLog.warn("In-process analyses cannot run concurrently. Projects will be analysed in forked processes.");
+        }
+        // Analyses are configured on this thread, as library resolution logs to JkLog
+        Map<String, JkSonarqube> analyses = new LinkedHashMap<>();
+        for (JkJavaProject project : projects) {
+            JkSonarqube sonarqube = createConfiguredSonarqube(project).setProperties(properties);
+            if (executionMode == JkSonarqube.ExecutionMode.IN_PROCESS) {
+                sonarqube.setExecutionMode(JkSonarqube.ExecutionMode.FORK);
+            }
+            analyses.put(moduleKey(project), sonarqube);
+        }
+        JkLog.startTask("Analyse " + projects.size() + " projects with " + aggregateParallelism + " workers");
+        ExecutorService executorService = Executors.newFixedThreadPool(Math.max(1, aggregateParallelism));
+        CompletionService<ModuleAnalysis> completionService = new ExecutorCompletionService<>(executorService);
+        try {
+            analyses.forEach((key, sonarqube) -> completionService.submit(() -> analyseBuffered(key, sonarqube)));
+            List<String> failedModules = new ArrayList<>();
+            for (int i = 0; i < projects.size(); i++) {
+                ModuleAnalysis analysis = completionService.take().get();
+                JkLog.startTask("Sonar analysis of " + analysis.moduleKey);
+                analysis.output.flushTo(JkSonarqube::logToJkLog);
+                if (analysis.failure != null) {
+                    JkLog.error(analysis.failure.getMessage());
+                    failedModules.add(analysis.moduleKey);
+                }
+                JkLog.endTask();
+            }
+            JkUtilsAssert.state(failedModules.isEmpty(), "Sonar analysis failed for %s", failedModules);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for sonar analyses.", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Sonar analysis failed.", e.getCause());
+        } finally {
+            executorService.shutdownNow();
+        }
+        JkLog.endTask();
+    }
+
+    private static ModuleAnalysis analyseBuffered(String moduleKey, JkSonarqube sonarqube) {
+        ModuleAnalysis result = new ModuleAnalysis(moduleKey);
+        try {
+            sonarqube.setOutputConsumer(result.output).run();
+        } catch (RuntimeException e) {
+            result.failure = e;
+        }
+        return result;
+    }
+
+    private static String moduleKey(JkJavaProject project) {
+        return project.getBaseDir().getFileName().toString();
+    }
+
+    private static final class PreparedAnalysis {
+
+        final JkJavaProject project;
+
+        final JkSonarqube sonarqube;
+
+        final FileHashIndex sourceIndex;
+
+        PreparedAnalysis(JkJavaProject project, JkSonarqube sonarqube, FileHashIndex sourceIndex) {
+            this.project = project;
+            this.sonarqube = sonarqube;
+            this.sourceIndex = sourceIndex;
+        }
+    }
+
+    private static final class ModuleAnalysis {
+
+        final String moduleKey;
+
+        final BufferedOutput output = new BufferedOutput();
+
+        RuntimeException failure;
+
+        ModuleAnalysis(String moduleKey) {
+            this.moduleKey = moduleKey;
+        }
     }
 
 }
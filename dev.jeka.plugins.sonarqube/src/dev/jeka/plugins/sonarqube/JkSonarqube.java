@@ -4,19 +4,27 @@ package dev.jeka.plugins.sonarqube;
 import dev.jeka.core.api.depmanagement.*;
 import dev.jeka.core.api.depmanagement.resolution.JkDependencyResolver;
 import dev.jeka.core.api.depmanagement.resolution.JkResolveResult;
-import dev.jeka.core.api.java.JkInternalClassloader;
-import dev.jeka.core.api.java.JkJavaProcess;
 import dev.jeka.core.api.java.JkJavaVersion;
 import dev.jeka.core.api.system.JkLog;
 import dev.jeka.core.api.utils.JkUtilsAssert;
-import dev.jeka.core.api.utils.JkUtilsIO;
 import dev.jeka.core.api.utils.JkUtilsPath;
+import dev.jeka.core.api.utils.JkUtilsString;
 import dev.jeka.core.api.utils.JkUtilsSystem;
 
-import java.net.URL;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.regex.Pattern;
 
 /**
  * Sonar wrapper class for launching sonar analysis in a convenient way. This
@@ -30,9 +38,18 @@ public final class JkSonarqube {
     public static final String PROJECT_KEY = "projectKey";
     public static final String PROJECT_NAME = "projectName";
     public static final String PROJECT_VERSION = "projectVersion";
+    public static final String PROJECT_DATE = "projectDate";
     public static final String LANGUAGE = "language";
     public static final String PROFILE = "profile";
     public static final String BRANCH = "branch";
+    public static final String BRANCH_NAME = "branch.name";
+    public static final String PULL_REQUEST_KEY = "pullrequest.key";
+    public static final String PULL_REQUEST_BRANCH = "pullrequest.branch";
+    public static final String PULL_REQUEST_BASE = "pullrequest.base";
+    public static final String INCLUSIONS = "inclusions";
+    public static final String TEST_INCLUSIONS = "test.inclusions";
+    public static final String EXCLUSIONS = "exclusions";
+    public static final String COVERAGE_EXCLUSIONS = "coverage.exclusions";
     public static final String SOURCE_ENCODING = "sourceEncoding";
     public static final String VERBOSE = "verbose";
     public static final String WORKING_DIRECTORY = "working.directory";
@@ -52,22 +69,105 @@ public final class JkSonarqube {
     public static final String JAVA_LIBRARIES = "java.libraries";
     public static final String JAVA_TEST_LIBRARIES = "java.test.libraries";
     public static final String JAVA_TEST_BINARIES = "java.test.binaries";
+    public static final String MODULES = "modules";
     public static final String SKIP_DESIGN = "skipDesign";
     public static final String HOST_URL = "host.url";
+    public static final String USER_HOME = "userHome";
+    public static final String ANALYSIS_CACHE_ENABLED = "analysisCache.enabled";
+    public static final String LOGIN = "login";
+    public static final String PASSWORD = "password";
+    public static final String TOKEN = "token";
     public static final String JDBC_URL = "jdbc.url";
     public static final String JDBC_USERNAME = "jdbc.username";
     public static final String JDBC_PASSWORD = "jdbc.password";
-    private static final String SCANNER_JAR_NAME_46 = "sonar-scanner-cli-4.6.2.2472.jar";
+    private static final String EMBEDDED_SCANNER_VERSION = "4.6.2.2472";
+    private static final String SCANNER_JAR_NAME_46 = "sonar-scanner-cli-" + EMBEDDED_SCANNER_VERSION + ".jar";
     private static final String SONAR_PREFIX = "sonar.";
+    private static final String PROJECT_SETTINGS = "project.settings";
+    private static final String PROPERTIES_FILE_NAME = "sonar-project.properties";
+    private static final String DEFAULT_WORKING_DIRECTORY = ".scannerwork";
+    private static final String DEFAULT_HOST_URL = "http://localhost:9000";
+    private static final BiConsumer<String, String> DEFAULT_OUTPUT_CONSUMER = JkSonarqube::logToJkLog;
+
+    // Credentials, kept off the scanner command line and properties file.
+    private static final List<String> SECRET_PROPERTIES = Arrays.asList(LOGIN, PASSWORD, TOKEN);
+
+    // Properties which make no sense at module level. Module working dirs are managed by the scanner.
+    private static final List<String> PROJECT_WIDE_PROPERTIES = Arrays.asList(WORKING_DIRECTORY, VERBOSE,
+            HOST_URL, USER_HOME, ANALYSIS_CACHE_ENABLED, BRANCH, BRANCH_NAME, PULL_REQUEST_KEY, PULL_REQUEST_BRANCH,
+            PULL_REQUEST_BASE, LOGIN, PASSWORD, TOKEN);
 
     private final Map<String, String> params = new HashMap<>();
 
+    private final Map<String, Map<String, String>> modules = new LinkedHashMap<>();
+
     private final JkRepoSet repos;
 
     private final String sonnarScannerVersion;
 
     private boolean logOutput;
 
+    private ExecutionMode executionMode = ExecutionMode.FORK;
+
+    private int daemonIdleTimeoutSeconds = 30 * 60;
+
+    private Duration scannerCacheTtl = Duration.ofHours(24);
+
+    private final List<String> scannerJvmOptions = new ArrayList<>();
+
+    private boolean useClassDataSharing;
+
+    private boolean usePropertiesFile;
+
+    private boolean skipIfUpToDate;
+
+    private long cacheSizeBudget;
+
+    private int captureMaxLines;
+
+    private int captureMaxChars;
+
+    private Pattern captureDumpPattern;
+
+    private Path captureSpillFile;
+
+    private Path reportQueueDir;
+
+    private volatile String hostUrlOverride;
+
+    private volatile BiConsumer<String, String> outputConsumer = DEFAULT_OUTPUT_CONSUMER;
+
+    private volatile Cancellation cancellation = new Cancellation();
+
+    private final Map<String, Long> preparationDurations = new LinkedHashMap<>();
+
+    private volatile AnalysisMetrics metrics;
+
+    private volatile OutputCapture capture;
+
+    /**
+     * Defines how the sonar scanner is launched.
+     */
+    public enum ExecutionMode {
+
+        /**
+         * Scanner runs in a new JVM. This is the safest mode but it pays the JVM startup on each run.
+         */
+        FORK,
+
+        /**
+         * Scanner runs in the current JVM through an isolated classloader, kept for later runs
+         * in the same Jeka session.
+         */
+        IN_PROCESS,
+
+        /**
+         * Scanner runs in a long-lived local JVM, started on first use and reused across Jeka invocations
+         * until it stays idle for longer than the daemon idle timeout.
+         */
+        DAEMON
+    }
+
     private JkSonarqube(JkRepoSet repos, String sonarScannerVersion) {
         this.repos = repos;
         this.sonnarScannerVersion = sonarScannerVersion;
@@ -109,27 +209,623 @@ public final class JkSonarqube {
         return this;
     }
 
+    /**
+     * Keeps the last scanner output lines in a ring buffer holding at most the specified number of lines and
+     * characters. Buffered lines are displayed only if the analysis fails or if a line matches the pattern set
+     * with {@link #setOutputDumpPattern(String)}. This keeps console output small on success while failures can
+     * still be diagnosed. Errors are always displayed as they come, other lines are not, even in verbose mode or
+     * when log output is on.
+     */
+    public JkSonarqube setOutputCapture(int maxLines, int maxChars) {
+        JkUtilsAssert.argument(maxLines > 0 && maxChars > 0, "Output capture limits must be positive.");
+        this.captureMaxLines = maxLines;
+        this.captureMaxChars = maxChars;
+        return this;
+    }
+
+    /**
+     * Sets a pattern which, found in a scanner output line, makes captured output be displayed once the
+     * analysis completes. Only relevant with {@link #setOutputCapture(int, int)}.
+     */
+    public JkSonarqube setOutputDumpPattern(String regex) {
+        this.captureDumpPattern = regex == null ? null : Pattern.compile(regex);
+        return this;
+    }
+
+    /**
+     * Sets a gzip file receiving the whole scanner output when output is captured. The file is deleted after
+     * the analysis unless captured output has been displayed. Only relevant with {@link #setOutputCapture(int, int)}.
+     */
+    public JkSonarqube setOutputSpillFile(Path gzipFile) {
+        this.captureSpillFile = gzipFile;
+        return this;
+    }
+
+    /**
+     * If true, the forked scanner receives analysis properties through a <code>sonar-project.properties</code>
+     * file written in the working directory, instead of one <code>-D</code> argument per property. This keeps the
+     * command line short whatever the number of libraries.
+     */
+    public JkSonarqube setUsePropertiesFile(boolean usePropertiesFile) {
+        this.usePropertiesFile = usePropertiesFile;
+        return this;
+    }
+
+    public JkSonarqube setExecutionMode(ExecutionMode executionMode) {
+        JkUtilsAssert.argument(executionMode != null, "Execution mode cannot be null.");
+        this.executionMode = executionMode;
+        return this;
+    }
+
+    /**
+     * Sets the inactivity delay after which the scanner daemon stops by itself. Only relevant in
+     * {@link ExecutionMode#DAEMON} mode.
+     */
+    public JkSonarqube setDaemonIdleTimeout(int seconds) {
+        JkUtilsAssert.argument(seconds > 0, "Daemon idle timeout must be positive, was %s.", seconds);
+        this.daemonIdleTimeoutSeconds = seconds;
+        return this;
+    }
+
+    /**
+     * Sets how long a scanner jar resolved for a dynamic version (as '+') is reused before
+     * resolving the version again. Scanner jars resolved for static versions are reused forever.
+     */
+    public JkSonarqube setScannerCacheTtl(Duration ttl) {
+        JkUtilsAssert.argument(ttl != null && !ttl.isNegative(), "Scanner cache TTL must be positive.");
+        this.scannerCacheTtl = ttl;
+        return this;
+    }
+
+    /**
+     * Adds options to the JVM running the scanner, in {@link ExecutionMode#FORK} and {@link ExecutionMode#DAEMON}
+     * modes. A running daemon started with other options is restarted.
+     */
+    public JkSonarqube addScannerJvmOptions(String... options) {
+        this.scannerJvmOptions.addAll(Arrays.asList(options));
+        return this;
+    }
+
+    /**
+     * Sets the max heap size of the scanner JVM, as '2g' or '512m'.
+     */
+    public JkSonarqube setScannerMaxHeap(String size) {
+        return addScannerJvmOptions("-Xmx" + size);
+    }
+
+    /**
+     * Sets the garbage collector of the scanner JVM, as 'Serial', 'Parallel' or 'G1'. A short scanner run
+     * generally favours the serial or parallel collectors.
+     */
+    public JkSonarqube setScannerGc(String gcName) {
+        return addScannerJvmOptions("-XX:+Use" + gcName + "GC");
+    }
+
+    /**
+     * Limits JIT compilation of the scanner JVM to the specified tier. Level 1 (C1 only) lowers warmup cost
+     * of short analyses, at the expense of peak performance.
+     */
+    public JkSonarqube setScannerTieredStopAtLevel(int level) {
+        JkUtilsAssert.argument(level >= 0 && level <= 4, "Tiered compilation level must be within 0..4, was %s.",
+                level);
+        return addScannerJvmOptions("-XX:TieredStopAtLevel=" + level);
+    }
+
+    /**
+     * If true, the forked scanner JVM maps a class data sharing archive of scanner classes, dumped by the first
+     * fork. The archive is specific to the scanner jar and to the running JDK, so it is recreated when one of
+     * them changes. Requires JDK 13 or later, ignored otherwise. Only relevant in {@link ExecutionMode#FORK} mode.
+     */
+    public JkSonarqube setUseClassDataSharing(boolean useClassDataSharing) {
+        this.useClassDataSharing = useClassDataSharing;
+        return this;
+    }
+
+    /**
+     * If true, {@link #run()} does nothing when properties and content of the files they refer to are
+     * identical to the ones of the last successful analysis.
+     */
+    public JkSonarqube setSkipIfUpToDate(boolean skipIfUpToDate) {
+        this.skipIfUpToDate = skipIfUpToDate;
+        return this;
+    }
+
+    /**
+     * Sets the directory where the scanner stores analyzer plugins downloaded from the server, as
+     * 'sonar.userHome'. Pointing it at a directory saved by CI cache steps avoids downloading plugins on
+     * each job. Default is <code>$SONAR_USER_HOME</code> or <code>~/.sonar</code>.
+     */
+    public JkSonarqube setUserHome(Path userHome) {
+        return setProperty(USER_HOME, userHome.toAbsolutePath().toString());
+    }
+
+    /**
+     * Enables or disables the analysis cache the server keeps for each branch, allowing the scanner to skip
+     * unchanged files. When not set, the server default applies.
+     */
+    public JkSonarqube setAnalysisCacheEnabled(boolean enabled) {
+        return setProperty(ANALYSIS_CACHE_ENABLED, Boolean.toString(enabled));
+    }
+
+    /**
+     * Sets the maximum size, in bytes, of the scanner plugin cache. After each analysis, least recently used
+     * plugins are evicted until the cache fits in this budget. 0 means unbounded.
+     */
+    public JkSonarqube setCacheSizeBudget(long bytes) {
+        JkUtilsAssert.argument(bytes >= 0, "Cache size budget cannot be negative, was %s.", bytes);
+        this.cacheSizeBudget = bytes;
+        return this;
+    }
+
+    /**
+     * Writes the scanner plugin cache in the specified zip archive.
+     */
+    public void exportCache(Path archive) {
+        new ScannerCache(userHome()).exportTo(archive);
+        info("Sonar scanner cache exported to " + archive);
+    }
+
+    /**
+     * Restores the scanner plugin cache from a zip archive created by {@link #exportCache(Path)}. Entries
+     * already present in the cache are kept. Does nothing if the archive does not exist.
+     */
+    public void importCache(Path archive) {
+        if (!Files.exists(archive)) {
+            info("No sonar scanner cache found at " + archive);
+            return;
+        }
+        new ScannerCache(userHome()).importFrom(archive);
+        info("Sonar scanner cache imported from " + archive);
+    }
+
+    /**
+     * Queues analysis reports in the specified directory instead of submitting them to the server. The server
+     * is still queried during analysis for plugins, quality profiles and settings, but the report upload leaves
+     * the critical path of the build. Queued reports are submitted later by {@link #uploadQueuedReports}.
+     * Setting <code>null</code> restores direct submission.
+     */
+    public JkSonarqube setReportQueue(Path queueDir) {
+        this.reportQueueDir = queueDir;
+        return this;
+    }
+
+    /**
+     * Submits reports queued in the specified directory to the server defined in this object, with at most
+     * <code>concurrency</code> uploads at once. Uploads failing on network errors or server overload are retried
+     * with exponential backoff up to <code>maxAttempts</code> times, then stay queued for a later batch. Reports
+     * rejected by the server are moved to a 'failed' sub-directory, unless credentials are refused : then
+     * uploading stops and all reports stay queued.
+     *
+     * @return The number of reports which stay queued or have been rejected.
+     */
+    public int uploadQueuedReports(Path queueDir, int concurrency, int maxAttempts) {
+        JkUtilsAssert.argument(maxAttempts > 0, "Max attempts must be positive, was %s.", maxAttempts);
+        ReportQueue.UploadResult result = new ReportQueue(queueDir).upload(hostUrl(), params.get(LOGIN),
+                params.get(PASSWORD), concurrency, maxAttempts);
+        info(result.toString());
+        return result.failed + result.remaining;
+    }
+
     public void run() {
-        JkLog.startTask("Launch Sonar analysis");
-        Path jar = getToolJar();
-        String[] args = JkLog.isVerbose() ? new String[] {"-e", "-X"} : new String[] {"-e"};
-        javaProcess(jar, "org.sonarsource.scanner.cli.Main").exec(args);
-        JkLog.endTask();
+        InputFingerprint inputFingerprint = null;
+        String fingerprint = null;
+        if (skipIfUpToDate) {
+            inputFingerprint = new InputFingerprint(workingDir(), this::log);
+            fingerprint = inputFingerprint.compute(params, baseDir());
+            for (Map<String, String> moduleParams : modules.values()) {
+                fingerprint = Checksums.of(fingerprint + inputFingerprint.compute(moduleParams,
+                        Paths.get(moduleParams.get(PROJECT_BASE_DIR))));
+            }
+            if (inputFingerprint.matchesLastSuccess(fingerprint)) {
+                info("Sonar analysis skipped : properties, sources, binaries, libraries and reports are " +
+                        "unchanged since last successful analysis.");
+                return;
+            }
+            inputFingerprint.clearLastSuccess();
+        }
+        boolean logTask = outputConsumer == DEFAULT_OUTPUT_CONSUMER;
+        if (logTask) {
+            JkLog.startTask("Launch Sonar analysis");
+        }
+        AnalysisMetrics runMetrics = new AnalysisMetrics();
+        preparationDurations.forEach(runMetrics::addDuration);
+        this.metrics = runMetrics;
+        boolean success = false;
+        try {
+            long toolJarStart = System.nanoTime();
+            ScannerJarCache.Entry scanner = getToolJar();
+            runMetrics.addDuration("getToolJar", (System.nanoTime() - toolJarStart) / 1_000_000);
+            runMetrics.scannerLaunched();
+            try {
+                runQueuingReport(scanner);
+            } finally {
+                runMetrics.scannerCompleted();
+            }
+            success = true;
+        } finally {
+            this.metrics = null;
+            runMetrics.writeReport(workingDir().resolve(AnalysisMetrics.REPORT_FILE), reportAttributes(success),
+                    this::log);
+        }
+        info(runMetrics.summary());
+        if (inputFingerprint != null) {
+            inputFingerprint.recordSuccess(fingerprint);
+        }
+        if (cacheSizeBudget > 0) {
+            long freed = new ScannerCache(userHome()).evict(cacheSizeBudget, this::log);
+            if (freed > 0) {
+                info("Evicted " + freed / 1024 + " KB from sonar scanner cache.");
+            }
+        }
+        if (logTask) {
+            JkLog.endTask();
+        }
+    }
+
+    private void runQueuingReport(ScannerJarCache.Entry scanner) {
+        if (reportQueueDir == null) {
+            runCapturingOutput(scanner);
+            return;
+        }
+        try (ReportQueue.Proxy proxy = new ReportQueue(reportQueueDir).startProxy(hostUrl())) {
+            hostUrlOverride = proxy.url();
+            runCapturingOutput(scanner);
+        } finally {
+            hostUrlOverride = null;
+        }
+        info("Sonar analysis report queued in " + reportQueueDir);
+    }
+
+    private void runCapturingOutput(ScannerJarCache.Entry scanner) {
+        if (captureMaxLines == 0) {
+            runScanner(scanner);
+            return;
+        }
+        try (OutputCapture outputCapture = new OutputCapture(captureMaxLines, captureMaxChars, captureDumpPattern,
+                captureSpillFile)) {
+            this.capture = outputCapture;
+            try {
+                runScanner(scanner);
+            } catch (RuntimeException e) {
+                outputCapture.dumpTo(outputConsumer, "Sonar analysis failed");
+                throw e;
+            } finally {
+                this.capture = null;
+            }
+            if (outputCapture.isPatternMatched()) {
+                outputCapture.dumpTo(outputConsumer, "Sonar scanner output matched " + captureDumpPattern);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot close captured output spill file " + captureSpillFile, e);
+        }
     }
 
-    private JkJavaProcess javaProcess(Path jar, String mainClassName) {
-        return JkJavaProcess.ofJava(mainClassName)
-                .setClasspath(jar)
-                .setFailOnError(true)
-                .addParams(toProperties())
-                .setLogCommand(JkLog.isVerbose())
-                .setLogOutput(JkLog.isVerbose() || logOutput);
+    private void runScanner(ScannerJarCache.Entry scanner) {
+        Cancellation cancellation = this.cancellation;
+        cancellation.checkNotRequested();
+        if (executionMode == ExecutionMode.IN_PROCESS) {
+            cancellation.onCancel(Thread.currentThread()::interrupt);
+            InProcessScanner.of(scanner.jar, scanner.version).execute(toSonarProperties(), this::logScannerOutput);
+        } else if (executionMode == ExecutionMode.DAEMON) {
+            new ScannerDaemonClient(scanner.jar, scanner.version, daemonIdleTimeoutSeconds, scannerJvmOptions,
+                    this::logScannerOutput, cancellation).execute(toSonarProperties());
+        } else {
+            List<String> jvmOptions = new ArrayList<>(scannerJvmOptions);
+            ScannerCds cds = useClassDataSharing ? ScannerCds.of(scanner.checksum, this::log) : null;
+            if (cds != null) {
+                jvmOptions.addAll(cds.jvmOptions());
+            }
+            List<String> args = JkLog.isVerbose() ? Arrays.asList("-e", "-X") : Collections.singletonList("-e");
+            Map<String, String> properties = toSonarProperties();
+            Map<String, String> credentials = removeCredentials(properties);
+            try {
+                new ForkedScanner(scanner.jar, jvmOptions, cancellation).execute(
+                        usePropertiesFile ? propertiesFileArgs(properties) : toProperties(properties), credentials,
+                        args, this::logScannerOutput);
+            } finally {
+                if (cds != null) {
+                    cds.publishArchive();
+                }
+            }
+        }
+    }
+
+    /*
+     * Removes credentials from the specified scanner properties, whatever their module prefix, and returns
+     * the project level ones. Module level credentials are dropped, as the scanner authenticates once.
+     */
+    static Map<String, String> removeCredentials(Map<String, String> properties) {
+        Map<String, String> credentials = new LinkedHashMap<>();
+        for (Iterator<Map.Entry<String, String>> it = properties.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, String> entry = it.next();
+            String key = entry.getKey();
+            for (String secret : SECRET_PROPERTIES) {
+                String sonarKey = SONAR_PREFIX + secret;
+                if (key.equals(sonarKey)) {
+                    credentials.put(key, entry.getValue());
+                    it.remove();
+                    break;
+                }
+                if (key.endsWith("." + sonarKey)) {
+                    it.remove();
+                    break;
+                }
+            }
+        }
+        return credentials;
+    }
+
+    private Map<String, String> reportAttributes(boolean success) {
+        Map<String, String> result = new LinkedHashMap<>();
+        result.put("projectKey", String.valueOf(params.get(PROJECT_KEY)));
+        result.put("status", success ? "SUCCESS" : "FAILURE");
+        result.put("executionMode", executionMode.name());
+        result.put("reportQueued", Boolean.toString(reportQueueDir != null));
+        result.put("scannerVersion", sonnarScannerVersion == null ? EMBEDDED_SCANNER_VERSION : sonnarScannerVersion);
+        return result;
+    }
+
+    /**
+     * Runs analysis on a background thread and returns immediately, so other build tasks can run meanwhile.
+     * Output is buffered, then flushed as a single block when the returned handle is joined.<p>
+     * This object must not be modified until the analysis completes.
+     */
+    public RunHandle runAsync() {
+        BiConsumer<String, String> target = this.outputConsumer;
+        Cancellation previousCancellation = this.cancellation;
+        BufferedOutput bufferedOutput = new BufferedOutput();
+        Cancellation runCancellation = new Cancellation();
+        this.outputConsumer = bufferedOutput;
+        this.cancellation = runCancellation;
+        CompletableFuture<Void> completion = new CompletableFuture<>();
+        Thread thread = new Thread(() -> {
+            Throwable failure = null;
+            try {
+                run();
+            } catch (Throwable t) {
+                failure = t;
+            }
+            // Restored before completing, so a run following join() logs to the target and is not cancelled
+            this.outputConsumer = target;
+            this.cancellation = previousCancellation;
+            if (failure == null) {
+                completion.complete(null);
+            } else {
+                completion.completeExceptionally(failure);
+            }
+        }, "sonar-analysis");
+        thread.setDaemon(true);
+        thread.start();
+        return new RunHandle(completion, bufferedOutput, target, runCancellation);
+    }
+
+    /**
+     * Handle on an analysis launched by {@link #runAsync()}.<p>
+     * Failure policy : a failure of the analysis is never thrown on the background thread. It is rethrown,
+     * unchanged if it is a runtime exception, when the handle is joined. Joining a cancelled or timed out
+     * analysis throws an {@link IllegalStateException}.
+     */
+    public static final class RunHandle {
+
+        private static final Duration CANCEL_GRACE_PERIOD = Duration.ofSeconds(10);
+
+        private final CompletableFuture<Void> completion;
+
+        private final BufferedOutput output;
+
+        private final BiConsumer<String, String> outputTarget;
+
+        private final Cancellation cancellation;
+
+        private RunHandle(CompletableFuture<Void> completion, BufferedOutput output,
+                          BiConsumer<String, String> outputTarget, Cancellation cancellation) {
+            this.completion = completion;
+            this.output = output;
+            this.outputTarget = outputTarget;
+            this.cancellation = cancellation;
+        }
+
+        public boolean isDone() {
+            return completion.isDone();
+        }
+
+        /**
+         * Cancels the analysis : forked scanner is killed, connection to daemon is closed and in-process
+         * scanner thread is interrupted. If the scanner is not launched yet, it will not be.
+         * Returns <code>false</code> if analysis has already completed.
+         */
+        public boolean cancel() {
+            if (completion.isDone()) {
+                return false;
+            }
+            cancellation.cancel();
+            return true;
+        }
+
+        /**
+         * Waits for the analysis to complete, flushes its output and rethrows its failure if any.
+         */
+        public void join() {
+            join(null);
+        }
+
+        /**
+         * Same as {@link #join()} but cancels the analysis and fails if it does not complete within the
+         * specified timeout.
+         */
+        public void join(Duration timeout) {
+            final Throwable failure;
+            try {
+                failure = await(timeout);
+            } catch (TimeoutException e) {
+                cancelAndFlush();
+                throw new IllegalStateException("Sonar analysis did not complete within " + timeout.getSeconds()
+                        + "s. It has been cancelled.");
+            } catch (InterruptedException e) {
+                cancelAndFlush();
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for sonar analysis. It has been cancelled.",
+                        e);
+            }
+            flush();
+            cancellation.checkNotRequested();
+            if (failure == null) {
+                return;
+            }
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            throw new IllegalStateException("Sonar analysis failed.", failure);
+        }
+
+        // Returns the failure of the analysis, or null if it succeeded.
+        private Throwable await(Duration timeout) throws InterruptedException, TimeoutException {
+            try {
+                if (timeout == null) {
+                    completion.get();
+                } else {
+                    completion.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+                }
+                return null;
+            } catch (ExecutionException e) {
+                return e.getCause();
+            }
+        }
+
+        // The analysis thread may still write output until the scanner reacts to cancel, so it is given
+        // some time to end before flushing.
+        private void cancelAndFlush() {
+            cancel();
+            try {
+                completion.get(CANCEL_GRACE_PERIOD.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                // Output written after this point is dropped
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            flush();
+        }
+
+        private void flush() {
+            boolean logTask = outputTarget == DEFAULT_OUTPUT_CONSUMER;
+            if (logTask) {
+                JkLog.startTask("Sonar analysis output");
+            }
+            output.flushTo(outputTarget);
+            if (logTask) {
+                JkLog.endTask();
+            }
+        }
+    }
+
+    /**
+     * Returns a future completed with the quality gate computed by the server for the last analysis run
+     * in the working directory. The server is polled on a background thread, so the build can go on and
+     * join on the result later.<p>
+     * The future completes exceptionally if the analysis report task cannot be found, if server side
+     * processing fails, or if it does not complete within the specified timeout.
+     */
+    public CompletableFuture<JkSonarqubeQualityGate> getQualityGateAsync(Duration timeout) {
+        return new QualityGatePoller(params.get(LOGIN), params.get(PASSWORD), timeout).poll(workingDir());
+    }
+
+    /*
+     * Sets where scanner output lines go, along their level name. Errors are always sent,
+     * other lines only in verbose mode or when log output is on. Messages of this class are sent
+     * there as well. Default is JkLog.
+     */
+    JkSonarqube setOutputConsumer(BiConsumer<String, String> outputConsumer) {
+        this.outputConsumer = outputConsumer;
+        return this;
     }
 
-    private List<String> toProperties() {
+    /*
+     * Records the duration of a step preparing this analysis, as library resolution, so it appears
+     * in the analysis report.
+     */
+    JkSonarqube addPreparationDuration(String name, long millis) {
+        this.preparationDurations.merge(name, millis, Long::sum);
+        return this;
+    }
+
+    private void logScannerOutput(String message, String level) {
+        AnalysisMetrics currentMetrics = this.metrics;
+        if (currentMetrics != null) {
+            currentMetrics.parse(message);
+        }
+        OutputCapture currentCapture = this.capture;
+        boolean shown = "ERROR".equals(level) || (currentCapture == null && (JkLog.isVerbose() || logOutput));
+        if (currentCapture != null) {
+            currentCapture.accept(message, level, shown);
+        }
+        if (shown) {
+            outputConsumer.accept(message, level);
+        }
+    }
+
+    private void info(String message) {
+        outputConsumer.accept(message, "INFO");
+    }
+
+    // Messages of helper classes. DEBUG ones are only shown in verbose mode, as JkLog#trace does.
+    private void log(String message, String level) {
+        if (!"DEBUG".equals(level) || JkLog.isVerbose()) {
+            outputConsumer.accept(message, level);
+        }
+    }
+
+    static void logToJkLog(String message, String level) {
+        if ("ERROR".equals(level)) {
+            JkLog.error(message);
+        } else if ("WARN".equals(level)) {
+            JkLog.warn(message);
+        } else if ("DEBUG".equals(level) || "TRACE".equals(level)) {
+            JkLog.trace(message);
+        } else {
+            JkLog.info(message);
+        }
+    }
+
+    private static List<String> toProperties(Map<String, String> sonarProperties) {
         final List<String> result = new LinkedList<>();
+        for (final Map.Entry<String, String> entry : sonarProperties.entrySet()) {
+            result.add("-D" + entry.getKey() + "=" + entry.getValue());
+        }
+        return result;
+    }
+
+    // The scanner reads the settings file passed as 'project.settings' instead of
+    // <base dir>/sonar-project.properties, so the command line size does not depend on classpath size.
+    private List<String> propertiesFileArgs(Map<String, String> sonarProperties) {
+        Path file = workingDir().resolve(PROPERTIES_FILE_NAME);
+        Properties properties = new Properties();
+        properties.putAll(sonarProperties);
+        try {
+            Files.createDirectories(file.getParent());
+            try (OutputStream os = Files.newOutputStream(file)) {
+                properties.store(os, "Generated by Jeka sonarqube plugin");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write sonar properties in " + file, e);
+        }
+        return Collections.singletonList("-D" + PROJECT_SETTINGS + "=" + file.toAbsolutePath());
+    }
+
+    private Map<String, String> toSonarProperties() {
+        final Map<String, String> result = new HashMap<>();
         for (final Map.Entry<String, String> entry : this.params.entrySet()) {
-            result.add("-Dsonar." + entry.getKey() + "=" + entry.getValue());
+            result.put(SONAR_PREFIX + entry.getKey(), entry.getValue());
+        }
+        for (final Map.Entry<String, Map<String, String>> module : this.modules.entrySet()) {
+            for (final Map.Entry<String, String> entry : module.getValue().entrySet()) {
+                result.put(module.getKey() + "." + SONAR_PREFIX + entry.getKey(), entry.getValue());
+            }
+        }
+        if (hostUrlOverride != null) {
+            result.put(SONAR_PREFIX + HOST_URL, hostUrlOverride);
         }
         return result;
     }
@@ -165,6 +861,44 @@ public final class JkSonarqube {
         return setProperty(SKIP_DESIGN, Boolean.toString(skip));
     }
 
+    public JkSonarqube setBranch(String branchName) {
+        return setProperty(BRANCH_NAME, branchName);
+    }
+
+    /**
+     * Declares the analysis as a pull request analysis.
+     *
+     * @param base The branch the pull request will be merged into. Can be <code>null</code> to let
+     *             the server use the main branch.
+     */
+    public JkSonarqube setPullRequest(String key, String branch, String base) {
+        setProperty(PULL_REQUEST_KEY, key).setProperty(PULL_REQUEST_BRANCH, branch);
+        if (base != null) {
+            setProperty(PULL_REQUEST_BASE, base);
+        }
+        return this;
+    }
+
+    /**
+     * Adds a module to analyse along this project in the same scanner run. Module properties are
+     * emitted as '[moduleKey].sonar.[key]', and module paths stay relative to the module base dir.
+     */
+    public JkSonarqube addModule(String moduleKey, JkSonarqube module) {
+        JkUtilsAssert.argument(!modules.containsKey(moduleKey), "Module %s already added.", moduleKey);
+        Map<String, String> moduleParams = module.getProperties();
+        moduleParams.keySet().removeAll(PROJECT_WIDE_PROPERTIES);
+        modules.put(moduleKey, moduleParams);
+        module.preparationDurations.forEach(this::addPreparationDuration);
+        return setProperty(MODULES, String.join(",", modules.keySet()));
+    }
+
+    /**
+     * Returns a copy of the properties set on this object, keyed without the 'sonar.' prefix.
+     */
+    public Map<String, String> getProperties() {
+        return new HashMap<>(params);
+    }
+
     public JkSonarqube setHostUrl(String url) {
         return setProperty(HOST_URL, url);
     }
@@ -205,14 +939,43 @@ public final class JkSonarqube {
         return Paths.get(this.params.get(PROJECT_BASE_DIR));
     }
 
-    private Path getToolJar() {
+    private Path workingDir() {
+        Path workingDir = Paths.get(this.params.getOrDefault(WORKING_DIRECTORY, DEFAULT_WORKING_DIRECTORY));
+        if (workingDir.isAbsolute()) {
+            return workingDir;
+        }
+        return baseDir().resolve(workingDir);
+    }
+
+    private String hostUrl() {
+        String hostUrl = params.get(HOST_URL);
+        return JkUtilsString.isBlank(hostUrl) ? DEFAULT_HOST_URL : hostUrl.trim();
+    }
+
+    private Path userHome() {
+        String userHome = this.params.get(USER_HOME);
+        return userHome == null ? ScannerCache.defaultUserHome() : Paths.get(userHome);
+    }
+
+    private Path baseDir() {
+        return this.params.containsKey(PROJECT_BASE_DIR) ? projectDir() : Paths.get("").toAbsolutePath();
+    }
+
+    private ScannerJarCache.Entry getToolJar() {
         JkJavaVersion javaVersion = JkJavaVersion.of(System.getProperty("java.version"));
         JkUtilsAssert.state(javaVersion.compareTo(JkJavaVersion.V11) >= 0,
                 "Sonarqube has to run on JRE >= 11. You are running on version " + javaVersion);
+        ScannerJarCache cache = new ScannerJarCache(scannerCacheTtl, this::log);
         if (this.sonnarScannerVersion == null) {
-            URL embeddedUrl = JkSonarqube.class.getResource(SCANNER_JAR_NAME_46);
-            JkLog.info("Use embedded sonar scanner : " + SCANNER_JAR_NAME_46);
-            return JkUtilsIO.copyUrlContentToCacheFile(embeddedUrl, null, JkInternalClassloader.URL_CACHE_DIR);
+            info("Use embedded sonar scanner : " + SCANNER_JAR_NAME_46);
+            return cache.embedded(SCANNER_JAR_NAME_46, EMBEDDED_SCANNER_VERSION);
+        }
+        String key = ScannerJarCache.key(repos, sonnarScannerVersion);
+        boolean dynamic = ScannerJarCache.isDynamic(sonnarScannerVersion);
+        ScannerJarCache.Entry cachedEntry = cache.get(key, dynamic);
+        if (cachedEntry != null) {
+            info("Run sonar scanner " + cachedEntry.version + " (cached)");
+            return cachedEntry;
         }
         JkModuleDependency moduleDep = JkModuleDependency
                 .of("org.sonarsource.scanner.cli", "sonar-scanner-cli", this.sonnarScannerVersion)
@@ -224,6 +987,12 @@ public final class JkSonarqube {
                 .__;
         JkResolveResult resolveResult = dependencyResolver.resolve(JkDependencySet.of().and(moduleDep));
         if (resolveResult.getErrorReport().hasErrors()) {
+            ScannerJarCache.Entry staleEntry = cache.getIgnoringTtl(key);
+            if (staleEntry != null) {
+                outputConsumer.accept("Cannot resolve sonar scanner " + sonnarScannerVersion
+                        + ". Use previously resolved " + staleEntry.version + " instead.", "WARN");
+                return staleEntry;
+            }
             StringBuilder sb = new StringBuilder();
             String coordinates =  moduleDep.getModuleId().withVersion(this.sonnarScannerVersion).toString();
             sb.append("Cannot find dependency " + coordinates + "\n");
@@ -233,8 +1002,9 @@ public final class JkSonarqube {
             throw new IllegalStateException(sb.toString());
         }
         JkVersion effectiveVersion = resolveResult.getVersionOf(moduleDep.getModuleId());  // Get effective version if specified one is '+'
-        JkLog.info("Run sonar scanner " + effectiveVersion);
-        return resolveResult.getFiles().getEntries().get(0);
+        info("Run sonar scanner " + effectiveVersion);
+        Path jar = resolveResult.getFiles().getEntries().get(0);
+        return cache.put(key, jar, effectiveVersion == null ? sonnarScannerVersion : effectiveVersion.getValue());
     }
 
 }
@@ -0,0 +1,58 @@
+package dev.jeka.plugins.sonarqube;
+
+/**
+ * Quality gate status computed by the server for an analysis.
+ */
+public final class JkSonarqubeQualityGate {
+
+    /**
+     * Quality gate statuses, as returned by the server.
+     */
+    public enum Status {
+        OK, WARN, ERROR, NONE
+    }
+
+    private final String projectKey;
+
+    private final String analysisId;
+
+    private final Status status;
+
+    private final String dashboardUrl;
+
+    JkSonarqubeQualityGate(String projectKey, String analysisId, Status status, String dashboardUrl) {
+        this.projectKey = projectKey;
+        this.analysisId = analysisId;
+        this.status = status;
+        this.dashboardUrl = dashboardUrl;
+    }
+
+    public String getProjectKey() {
+        return projectKey;
+    }
+
+    public String getAnalysisId() {
+        return analysisId;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public String getDashboardUrl() {
+        return dashboardUrl;
+    }
+
+    /**
+     * Returns <code>false</code> only if the quality gate status is {@link Status#ERROR}.
+     */
+    public boolean isPassed() {
+        return status != Status.ERROR;
+    }
+
+    @Override
+    public String toString() {
+        return "Quality gate of " + projectKey + " : " + status + " (" + dashboardUrl + ")";
+    }
+
+}
@@ -0,0 +1,194 @@
+package dev.jeka.plugins.sonarqube;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON parser for server responses, as the plugin classpath does not provide a JSON library.
+ * Objects are read as maps, arrays as lists, numbers as doubles and literals as booleans or
+ * <code>null</code>.
+ */
+final class JsonReader {
+
+    private final String json;
+
+    private int index;
+
+    private JsonReader(String json) {
+        this.json = json;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the specified text is not valid JSON.
+     */
+    static Object parse(String json) {
+        JsonReader reader = new JsonReader(json);
+        Object result = reader.readValue();
+        reader.skipWhitespaces();
+        if (reader.index != json.length()) {
+            throw reader.error("Unexpected content");
+        }
+        return result;
+    }
+
+    /**
+     * Returns the string value found at the specified path of field names, or <code>null</code> if a field
+     * is missing or the value is not a string.
+     */
+    static String string(Object json, String... path) {
+        Object current = json;
+        for (String name : path) {
+            if (!(current instanceof Map)) {
+                return null;
+            }
+            current = ((Map<?, ?>) current).get(name);
+        }
+        return current instanceof String ? (String) current : null;
+    }
+
+    private Object readValue() {
+        skipWhitespaces();
+        if (index >= json.length()) {
+            throw error("Unexpected end");
+        }
+        char c = json.charAt(index);
+        if (c == '{') {
+            return readObject();
+        }
+        if (c == '[') {
+            return readArray();
+        }
+        if (c == '"') {
+            return readString();
+        }
+        if (json.startsWith("true", index)) {
+            index += 4;
+            return Boolean.TRUE;
+        }
+        if (json.startsWith("false", index)) {
+            index += 5;
+            return Boolean.FALSE;
+        }
+        if (json.startsWith("null", index)) {
+            index += 4;
+            return null;
+        }
+        return readNumber();
+    }
+
+    private Map<String, Object> readObject() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        index++;
+        skipWhitespaces();
+        if (consume('}')) {
+            return result;
+        }
+        do {
+            skipWhitespaces();
+            if (index >= json.length() || json.charAt(index) != '"') {
+                throw error("Expected field name");
+            }
+            String name = readString();
+            skipWhitespaces();
+            expect(':');
+            result.put(name, readValue());
+            skipWhitespaces();
+        } while (consume(','));
+        expect('}');
+        return result;
+    }
+
+    private List<Object> readArray() {
+        List<Object> result = new ArrayList<>();
+        index++;
+        skipWhitespaces();
+        if (consume(']')) {
+            return result;
+        }
+        do {
+            result.add(readValue());
+            skipWhitespaces();
+        } while (consume(','));
+        expect(']');
+        return result;
+    }
+
+    private String readString() {
+        StringBuilder sb = new StringBuilder();
+        index++;
+        while (index < json.length()) {
+            char c = json.charAt(index++);
+            if (c == '"') {
+                return sb.toString();
+            }
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            if (index >= json.length()) {
+                break;
+            }
+            char escaped = json.charAt(index++);
+            switch (escaped) {
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'u':
+                    if (index + 4 > json.length()) {
+                        throw error("Invalid unicode escape");
+                    }
+                    try {
+                        sb.append((char) Integer.parseInt(json.substring(index, index + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw error("Invalid unicode escape");
+                    }
+                    index += 4;
+                    break;
+                default: sb.append(escaped);
+            }
+        }
+        throw error("Unterminated string");
+    }
+
+    private Double readNumber() {
+        int start = index;
+        while (index < json.length() && "+-0123456789.eE".indexOf(json.charAt(index)) >= 0) {
+            index++;
+        }
+        try {
+            return Double.valueOf(json.substring(start, index));
+        } catch (NumberFormatException e) {
+            index = start;
+            throw error("Unexpected character");
+        }
+    }
+
+    private void skipWhitespaces() {
+        while (index < json.length() && Character.isWhitespace(json.charAt(index))) {
+            index++;
+        }
+    }
+
+    private boolean consume(char c) {
+        if (index < json.length() && json.charAt(index) == c) {
+            index++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char c) {
+        if (!consume(c)) {
+            throw error("Expected '" + c + "'");
+        }
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at position " + index + " of JSON : " + json);
+    }
+
+}
@@ -0,0 +1,222 @@
+package dev.jeka.plugins.sonarqube;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Keeps only the library jars which contain a package referenced by compiled classes.<p>
+ * Referenced packages are read from the constant pool of class files : class entries, plus type descriptors
+ * and signatures, so types only appearing in method signatures, fields or annotations count as well.
+ * Packages of each jar are indexed once, then stored in the plugin cache under the jar checksum. Types only
+ * referenced by libraries themselves, as super types of library classes, are not considered.
+ */
+final class LibraryPruner {
+
+    private static final Path INDEX_DIR = ScannerJarCache.CACHE_DIR.resolve("lib-packages");
+
+    private static final Path JAR_HASH_INDEX = INDEX_DIR.resolve("jar-hashes.txt");
+
+    private static final Path JAR_HASH_INDEX_LOCK = INDEX_DIR.resolve("jar-hashes.lock");
+
+    private static final Pattern TYPE_DESCRIPTOR = Pattern.compile("L([\\w$/]+)[;<]");
+
+    private static final String VERSIONED_PREFIX = "META-INF/versions/";
+
+    private LibraryPruner() {
+    }
+
+    /**
+     * Returns libraries containing a package referenced by a class of the specified class dirs, in their original
+     * order. Entries which are not jar files are always kept. If no class dir exists, libraries are returned
+     * unchanged.
+     *
+     * @param logConsumer Receives messages along their level, on the calling thread.
+     */
+    static List<Path> prune(Iterable<Path> libs, Collection<Path> classDirs, BiConsumer<String, String> logConsumer) {
+        List<Path> libList = new ArrayList<>();
+        libs.forEach(libList::add);
+        List<Path> existingClassDirs = classDirs.stream().filter(Files::isDirectory).collect(Collectors.toList());
+        if (existingClassDirs.isEmpty()) {
+            logConsumer.accept("No compiled classes found. Sonar libraries are not pruned.", "DEBUG");
+            return libList;
+        }
+        Set<String> referencedPackages = referencedPackages(existingClassDirs);
+        FileHashIndex hashIndex = FileHashIndex.load(JAR_HASH_INDEX, logConsumer);
+        Map<Path, Boolean> referenced = new ConcurrentHashMap<>();
+        BufferedOutput messages = new BufferedOutput();  // Jars are indexed on pool threads
+        libList.parallelStream()
+                .forEach(lib -> referenced.put(lib, isReferenced(lib, hashIndex, referencedPackages, messages)));
+        messages.flushTo(logConsumer);
+        saveHashIndex(hashIndex, logConsumer);
+        List<Path> result = libList.stream().filter(referenced::get).collect(Collectors.toList());
+        logConsumer.accept("Sonar libraries pruned to " + result.size() + " out of " + libList.size()
+                + " entries referenced by compiled classes.", "INFO");
+        return result;
+    }
+
+    // Builds running concurrently share the index : entries saved by others meanwhile are kept.
+    private static void saveHashIndex(FileHashIndex hashIndex, BiConsumer<String, String> logConsumer) {
+        FileLocks.withLock(JAR_HASH_INDEX_LOCK, () -> {
+            hashIndex.mergeMissing(FileHashIndex.load(JAR_HASH_INDEX, logConsumer));
+            hashIndex.save(JAR_HASH_INDEX);
+        });
+    }
+
+    private static boolean isReferenced(Path lib, FileHashIndex hashIndex, Set<String> referencedPackages,
+                                        BiConsumer<String, String> logConsumer) {
+        if (!isJar(lib)) {
+            return true;
+        }
+        Set<String> packages = packagesOf(lib, hashIndex, logConsumer);
+        return packages == null || !Collections.disjoint(packages, referencedPackages);
+    }
+
+    private static Set<String> referencedPackages(Collection<Path> classDirs) {
+        Set<String> result = ConcurrentHashMap.newKeySet();
+        for (Path classDir : classDirs) {
+            try (Stream<Path> paths = Files.walk(classDir)) {
+                paths.filter(path -> path.toString().endsWith(".class"))
+                        .parallel()
+                        .forEach(classFile -> result.addAll(referencedPackages(classFile)));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot walk " + classDir, e);
+            }
+        }
+        return result;
+    }
+
+    private static Set<String> referencedPackages(Path classFile) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(classFile)))) {
+            return referencedPackages(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read class file " + classFile, e);
+        }
+    }
+
+    // Parses the constant pool. Class entries hold internal names (or array descriptors), while utf8 entries
+    // hold descriptors and signatures of fields, methods and annotations.
+    static Set<String> referencedPackages(DataInputStream in) throws IOException {
+        Set<String> result = new HashSet<>();
+        if (in.readInt() != 0xCAFEBABE) {
+            return result;
+        }
+        in.readUnsignedShort();  // minor version
+        in.readUnsignedShort();  // major version
+        int count = in.readUnsignedShort();
+        String[] utf8s = new String[count];
+        List<Integer> classNameIndexes = new ArrayList<>();
+        for (int i = 1; i < count; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case 1:   // Utf8
+                    utf8s[i] = in.readUTF();
+                    break;
+                case 7:   // Class
+                    classNameIndexes.add(in.readUnsignedShort());
+                    break;
+                case 8:   // String
+                case 16:  // MethodType
+                case 19:  // Module
+                case 20:  // Package
+                    in.skipBytes(2);
+                    break;
+                case 15:  // MethodHandle
+                    in.skipBytes(3);
+                    break;
+                case 3:   // Integer
+                case 4:   // Float
+                case 9:   // Fieldref
+                case 10:  // Methodref
+                case 11:  // InterfaceMethodref
+                case 12:  // NameAndType
+                case 17:  // Dynamic
+                case 18:  // InvokeDynamic
+                    in.skipBytes(4);
+                    break;
+                case 5:   // Long
+                case 6:   // Double
+                    in.skipBytes(8);
+                    i++;
+                    break;
+                default:
+                    throw new IOException("Unknown constant pool tag " + tag);
+            }
+        }
+        for (int index : classNameIndexes) {
+            String name = utf8s[index];
+            if (name != null && !name.startsWith("[")) {
+                addPackage(result, name);
+            }
+        }
+        for (String utf8 : utf8s) {
+            if (utf8 != null && utf8.indexOf(';') > 0) {
+                Matcher matcher = TYPE_DESCRIPTOR.matcher(utf8);
+                while (matcher.find()) {
+                    addPackage(result, matcher.group(1));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void addPackage(Set<String> packages, String internalName) {
+        int index = internalName.lastIndexOf('/');
+        if (index > 0) {
+            packages.add(internalName.substring(0, index));
+        }
+    }
+
+    private static boolean isJar(Path lib) {
+        return Files.isRegularFile(lib) && lib.getFileName().toString().endsWith(".jar");
+    }
+
+    // Returns null if the jar cannot be read.
+    private static Set<String> packagesOf(Path jar, FileHashIndex hashIndex, BiConsumer<String, String> logConsumer) {
+        Path indexFile = INDEX_DIR.resolve(hashIndex.hash(jar) + ".txt");
+        if (Files.exists(indexFile)) {
+            try {
+                return new HashSet<>(Files.readAllLines(indexFile, StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                logConsumer.accept("Ignore unreadable package index " + indexFile + " : " + e, "DEBUG");
+            }
+        }
+        Set<String> packages = new TreeSet<>();
+        try (ZipFile zipFile = new ZipFile(jar.toFile())) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                String name = entries.nextElement().getName();
+                if (name.endsWith(".class") && !name.endsWith("module-info.class")) {
+                    if (name.startsWith(VERSIONED_PREFIX)) {
+                        name = name.substring(name.indexOf('/', VERSIONED_PREFIX.length()) + 1);
+                    }
+                    addPackage(packages, name);
+                }
+            }
+        } catch (IOException e) {
+            logConsumer.accept("Cannot read library " + jar + ". It is kept : " + e.getMessage(), "WARN");
+            return null;
+        }
+        try {
+            Files.createDirectories(INDEX_DIR);
+            Path tempFile = Files.createTempFile(INDEX_DIR, "packages", ".tmp");
+            Files.write(tempFile, packages, StandardCharsets.UTF_8);
+            Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            logConsumer.accept("Cannot store package index of " + jar + " : " + e.getMessage(), "WARN");
+        }
+        return packages;
+    }
+
+}
@@ -0,0 +1,176 @@
+package dev.jeka.plugins.sonarqube;
+
+import dev.jeka.core.api.depmanagement.*;
+import dev.jeka.core.api.depmanagement.resolution.JkDependencyResolver;
+import dev.jeka.core.api.file.JkPathSequence;
+import dev.jeka.core.api.system.JkLog;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Resolves library files passed to the scanner, remembering results in memory for the current build and,
+ * when the dependency set only contains static versions, on disk for next builds.<p>
+ * Entries are keyed by a hash of the dependency set and of the repositories. A disk entry is ignored as
+ * soon as one of the files it lists does not exist anymore.
+ */
+final class LibraryResolutionCache {
+
+    private static final Path CACHE_DIR = ScannerJarCache.CACHE_DIR.resolve("libs");
+
+    private static final Map<String, JkPathSequence> MEMO = new ConcurrentHashMap<>();
+
+    private final boolean diskCache;
+
+    LibraryResolutionCache(boolean diskCache) {
+        this.diskCache = diskCache;
+    }
+
+    /**
+     * Resolves the specified dependency sets concurrently, the first one on the calling thread. As logs of
+     * concurrent resolutions would interleave, resolvers are muted meanwhile and a summary is logged once all
+     * complete, in the order of the dependency sets. In verbose mode, resolutions run one after the other
+     * with their full logs.
+     *
+     * @param names Names of the dependency sets, as displayed in the summary.
+     */
+    List<JkPathSequence> resolveAll(JkDependencyResolver<?> resolver, List<String> names,
+                                    List<JkDependencySet> depSets) {
+        List<JkPathSequence> result = new ArrayList<>();
+        if (depSets.size() < 2 || JkLog.isVerbose()) {
+            depSets.forEach(deps -> result.add(resolve(resolver, deps)));
+            return result;
+        }
+        long start = System.nanoTime();
+        JkLog.Verbosity verbosity = JkLog.verbosity();
+        JkLog.setVerbosity(JkLog.Verbosity.MUTE);
+        try {
+            List<CompletableFuture<JkPathSequence>> others = new ArrayList<>();
+            for (JkDependencySet deps : depSets.subList(1, depSets.size())) {
+                others.add(CompletableFuture.supplyAsync(() -> resolve(resolver, deps)));
+            }
+            result.add(resolve(resolver, depSets.get(0)));
+            for (CompletableFuture<JkPathSequence> other : others) {
+                result.add(other.join());
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Cannot resolve sonar libraries.", e.getCause());
+        } finally {
+            JkLog.setVerbosity(verbosity);
+        }
+        List<String> counts = new ArrayList<>();
+        for (int i = 0; i < result.size(); i++) {
+            counts.add(result.get(i).getEntries().size() + " " + names.get(i));
+        }
+        JkLog.info("Sonar libraries resolved in " + (System.nanoTime() - start) / 1_000_000 + " ms : "
+                + String.join(", ", counts) + ".");
+        return result;
+    }
+
+    /**
+     * Resolves on the calling thread, so resolution logs nest in the caller task. The memo is not locked
+     * during resolution : concurrent resolutions of the same dependency set may both run, the first stored
+     * result wins.
+     */
+    JkPathSequence resolve(JkDependencyResolver<?> resolver, JkDependencySet deps) {
+        String key = key(deps, resolver.getRepos());
+        JkPathSequence memoized = MEMO.get(key);
+        if (memoized != null) {
+            return memoized;
+        }
+        JkPathSequence result = null;
+        boolean storable = diskCache && isStatic(deps);
+        if (storable) {
+            result = read(key);
+            if (result != null) {
+                JkLog.trace("Sonar libraries read from cache " + CACHE_DIR.resolve(key));
+            }
+        }
+        if (result == null) {
+            result = resolver.resolve(deps).getFiles();
+            if (storable) {
+                write(key, result);
+            }
+        }
+        JkPathSequence previous = MEMO.putIfAbsent(key, result);
+        return previous == null ? result : previous;
+    }
+
+    private static String key(JkDependencySet deps, JkRepoSet repos) {
+        StringBuilder sb = new StringBuilder();
+        for (JkDependency dependency : deps.getEntries()) {
+            sb.append(dependency);
+            if (dependency instanceof JkModuleDependency) {
+                JkModuleDependency moduleDependency = (JkModuleDependency) dependency;
+                if (moduleDependency.getVersion().isUnspecified()) {
+                    sb.append('@').append(deps.getVersionProvider().getVersionOf(moduleDependency.getModuleId()));
+                }
+            }
+            sb.append('\n');
+        }
+        for (JkRepo repo : repos.getRepos()) {
+            sb.append(repo.getUrl()).append('\n');
+        }
+        return Checksums.of(sb.toString());
+    }
+
+    private static boolean isStatic(JkDependencySet deps) {
+        for (JkDependency dependency : deps.getEntries()) {
+            if (dependency instanceof JkModuleDependency) {
+                JkModuleDependency moduleDependency = (JkModuleDependency) dependency;
+                JkVersion version = moduleDependency.getVersion();
+                if (version.isUnspecified()) {
+                    version = deps.getVersionProvider().getVersionOf(moduleDependency.getModuleId());
+                }
+                if (version == null || version.isSnapshot() || ScannerJarCache.isDynamic(version.getValue())) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static JkPathSequence read(String key) {
+        Path file = CACHE_DIR.resolve(key);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            List<Path> paths = Files.readAllLines(file, StandardCharsets.UTF_8).stream()
+                    .map(Paths::get)
+                    .collect(Collectors.toList());
+            return paths.stream().allMatch(Files::exists) ? JkPathSequence.of(paths) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void write(String key, JkPathSequence paths) {
+        List<String> lines = paths.getEntries().stream()
+                .map(path -> path.toAbsolutePath().toString())
+                .collect(Collectors.toList());
+        try {
+            Files.createDirectories(CACHE_DIR);
+            Path tempFile = Files.createTempFile(CACHE_DIR, key, ".tmp");
+            Files.write(tempFile, lines, StandardCharsets.UTF_8);
+            Files.move(tempFile, CACHE_DIR.resolve(key), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            JkLog.warn("Cannot store sonar libraries in cache : " + e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+package dev.jeka.plugins.sonarqube;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.BiConsumer;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the last lines of scanner output in a ring buffer bounded both in line count and in characters, so they
+ * can be displayed only if the analysis fails or if a line matches a warning pattern. Lines already displayed
+ * live, as errors, are not displayed again.<p>
+ * Optionally, the whole output is also written in a gzip spill file, which is deleted on close unless the
+ * output has been dumped.
+ */
+final class OutputCapture implements BiConsumer<String, String>, Closeable {
+
+    private final int maxLines;
+
+    private final long maxChars;
+
+    private final Pattern dumpPattern;
+
+    private final Path spillFile;
+
+    private final Deque<String[]> lines = new ArrayDeque<>();
+
+    private long chars;
+
+    private long droppedLines;
+
+    private boolean patternMatched;
+
+    private boolean dumped;
+
+    private Writer spillWriter;
+
+    /**
+     * @param dumpPattern Pattern which, found in a line, requests the output to be dumped. Can be null.
+     * @param spillFile Gzip file receiving the whole output. Can be null.
+     */
+    OutputCapture(int maxLines, long maxChars, Pattern dumpPattern, Path spillFile) {
+        this.maxLines = maxLines;
+        this.maxChars = maxChars;
+        this.dumpPattern = dumpPattern;
+        this.spillFile = spillFile;
+        if (spillFile != null) {
+            try {
+                Files.createDirectories(spillFile.toAbsolutePath().getParent());
+                spillWriter = new BufferedWriter(new OutputStreamWriter(
+                        new GZIPOutputStream(Files.newOutputStream(spillFile)), StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot create spill file " + spillFile, e);
+            }
+        }
+    }
+
+    @Override
+    public void accept(String line, String level) {
+        accept(line, level, false);
+    }
+
+    /**
+     * @param shown Whether the line has already been displayed, so a dump skips it.
+     */
+    synchronized void accept(String line, String level, boolean shown) {
+        lines.addLast(new String[] {line, level, shown ? "shown" : null});
+        chars += line.length();
+        while (lines.size() > maxLines || (chars > maxChars && lines.size() > 1)) {
+            chars -= lines.removeFirst()[0].length();
+            droppedLines++;
+        }
+        if (dumpPattern != null && !patternMatched && dumpPattern.matcher(line).find()) {
+            patternMatched = true;
+        }
+        if (spillWriter != null) {
+            try {
+                spillWriter.write(level);
+                spillWriter.write(": ");
+                spillWriter.write(line);
+                spillWriter.write('\n');
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot write spill file " + spillFile, e);
+            }
+        }
+    }
+
+    synchronized boolean isPatternMatched() {
+        return patternMatched;
+    }
+
+    /**
+     * Sends buffered lines to the specified consumer, preceded by a line stating the reason of the dump.
+     */
+    synchronized void dumpTo(BiConsumer<String, String> consumer, String reason) {
+        dumped = true;
+        long shownCount = lines.stream().filter(line -> line[2] != null).count();
+        consumer.accept(reason + ". Last " + lines.size() + " lines of sonar scanner output"
+                + (droppedLines > 0 ? " (" + droppedLines + " previous lines dropped)" : "")
+                + (shownCount > 0 ? ", except " + shownCount + " lines displayed above" : "") + " :", "WARN");
+        for (String[] line : lines) {
+            if (line[2] == null) {
+                consumer.accept(line[0], line[1]);
+            }
+        }
+        if (spillFile != null) {
+            consumer.accept("Whole sonar scanner output is kept in " + spillFile, "WARN");
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (spillWriter != null) {
+            spillWriter.close();
+            spillWriter = null;
+            if (!dumped) {
+                Files.deleteIfExists(spillFile);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+package dev.jeka.plugins.sonarqube;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Polls the server for the compute engine task of an analysis, then for the quality gate status of the
+ * resulting analysis. Polling happens on a background daemon thread, with exponential backoff.
+ */
+final class QualityGatePoller {
+
+    static final String REPORT_TASK_FILE = "report-task.txt";
+
+    private static final long INITIAL_DELAY_MILLIS = 500;
+
+    private static final long MAX_DELAY_MILLIS = 10_000;
+
+    private final String login;
+
+    private final String password;
+
+    private final Duration timeout;
+
+    QualityGatePoller(String login, String password, Duration timeout) {
+        this.login = login;
+        this.password = password;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Reads the report task file written by the scanner in the specified working directory, then
+     * starts polling. The file is read on the caller thread, as a next analysis would clean it.
+     */
+    CompletableFuture<JkSonarqubeQualityGate> poll(Path workingDir) {
+        Path reportTaskFile = workingDir.resolve(REPORT_TASK_FILE);
+        Properties reportTask = new Properties();
+        try (InputStream is = Files.newInputStream(reportTaskFile)) {
+            reportTask.load(is);
+        } catch (IOException e) {
+            CompletableFuture<JkSonarqubeQualityGate> result = new CompletableFuture<>();
+            result.completeExceptionally(new UncheckedIOException("Cannot read " + reportTaskFile
+                    + ". Has the analysis run ?", e));
+            return result;
+        }
+        ExecutorService executorService = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "sonar-quality-gate-poller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        CompletableFuture<JkSonarqubeQualityGate> result = CompletableFuture.supplyAsync(
+                () -> waitForQualityGate(reportTask), executorService);
+        result.whenComplete((gate, failure) -> executorService.shutdown());
+        return result;
+    }
+
+    private JkSonarqubeQualityGate waitForQualityGate(Properties reportTask) {
+        String serverUrl = reportTask.getProperty("serverUrl");
+        String ceTaskUrl = reportTask.getProperty("ceTaskUrl");
+        long deadline = System.currentTimeMillis() + timeout.toMillis();
+        long delay = INITIAL_DELAY_MILLIS;
+        while (true) {
+            String json = get(ceTaskUrl);
+            String taskStatus = jsonString(json, "task", "status");
+            if ("SUCCESS".equals(taskStatus)) {
+                String analysisId = jsonString(json, "task", "analysisId");
+                String gateJson = get(serverUrl + "/api/qualitygates/project_status?analysisId="
+                        + urlEncode(analysisId));
+                String gateStatus = jsonString(gateJson, "projectStatus", "status");
+                return new JkSonarqubeQualityGate(reportTask.getProperty("projectKey"), analysisId,
+                        JkSonarqubeQualityGate.Status.valueOf(gateStatus),
+                        reportTask.getProperty("dashboardUrl"));
+            }
+            if (!"PENDING".equals(taskStatus) && !"IN_PROGRESS".equals(taskStatus)) {
+                throw new IllegalStateException("Server side processing of sonar analysis ended with status "
+                        + taskStatus + ". See " + ceTaskUrl);
+            }
+            if (System.currentTimeMillis() + delay > deadline) {
+                throw new IllegalStateException("Server did not process sonar analysis within "
+                        + timeout.getSeconds() + "s. See " + ceTaskUrl);
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for quality gate.", e);
+            }
+            delay = Math.min(delay * 2, MAX_DELAY_MILLIS);
+        }
+    }
+
+    private String get(String url) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(10_000);
+            connection.setReadTimeout(30_000);
+            if (login != null) {
+                String credentials = login + ":" + (password == null ? "" : password);
+                connection.setRequestProperty("Authorization", "Basic "
+                        + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8)));
+            }
+            int code = connection.getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK) {
+                throw new IllegalStateException("Request to " + url + " failed with HTTP status " + code);
+            }
+            try (InputStream is = connection.getInputStream()) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int read;
+                while ((read = is.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+                return new String(out.toByteArray(), StandardCharsets.UTF_8);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Request to " + url + " failed.", e);
+        }
+    }
+
+    // Returns the string value of the specified field of the specified top level object.
+    static String jsonString(String json, String objectName, String field) {
+        final String result;
+        try {
+            result = JsonReader.string(JsonReader.parse(json), objectName, field);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("Invalid server response : " + e.getMessage(), e);
+        }
+        if (result == null) {
+            throw new IllegalStateException("No field " + objectName + "." + field + " found in server response : "
+                    + json);
+        }
+        return result;
+    }
+
+    private static String urlEncode(String value) {
+        try {
+            return URLEncoder.encode(value, StandardCharsets.UTF_8.name());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+}
@@ -0,0 +1,262 @@
+package dev.jeka.plugins.sonarqube;
+
+import dev.jeka.core.api.system.JkLog;
+
+import javax.xml.stream.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Consolidates test reports before analysis, so the scanner parses one compact file instead of many.<p>
+ * Several JaCoCo XML reports are merged line by line : a line is covered if it is covered in any report, and
+ * its covered branch count is the highest one found. Only package, source file and line elements, the ones
+ * the scanner reads, are written. JUnit XML reports are aggregated in a single 'testsuites' file, without
+ * 'system-out' and 'system-err' elements.<p>
+ * Reports are read with StAX, so memory only depends on the number of source lines (JaCoCo) or on the size
+ * of a single element (JUnit). Outputs are produced again only when input reports have changed.
+ */
+final class ReportConsolidator {
+
+    static final String JACOCO_MERGED_FILE = "jacoco-merged.xml";
+
+    static final String JUNIT_DIR = "junit";
+
+    private static final String JUNIT_AGGREGATED_FILE = "TEST-aggregated.xml";
+
+    private static final String INDEX_FILE = "report-index.txt";
+
+    private static final String FINGERPRINT_SUFFIX = ".fingerprint";
+
+    private final Path outputDir;
+
+    private final FileHashIndex index;
+
+    ReportConsolidator(Path outputDir) {
+        this.outputDir = outputDir;
+        this.index = FileHashIndex.load(outputDir.resolve(INDEX_FILE), JkSonarqube::logToJkLog);
+    }
+
+    /**
+     * Merges the specified JaCoCo XML reports and returns the merged file.
+     */
+    Path mergeJacoco(List<Path> reports) {
+        Path output = outputDir.resolve(JACOCO_MERGED_FILE);
+        produce(output, reports, () -> writeJacoco(output, readJacoco(reports)));
+        return output;
+    }
+
+    /**
+     * Aggregates the specified JUnit XML reports and returns the directory containing the aggregated file.
+     */
+    Path aggregateJunit(List<Path> reports) {
+        Path output = outputDir.resolve(JUNIT_DIR).resolve(JUNIT_AGGREGATED_FILE);
+        produce(output, reports, () -> writeJunit(output, reports));
+        return output.getParent();
+    }
+
+    void saveIndex() {
+        index.save(outputDir.resolve(INDEX_FILE));
+    }
+
+    private void produce(Path output, List<Path> inputs, XmlTask task) {
+        StringBuilder sb = new StringBuilder();
+        inputs.stream().sorted()
+                .forEach(input -> sb.append(input).append('=').append(index.hash(input)).append('\n'));
+        String fingerprint = Checksums.of(sb.toString());
+        Path fingerprintFile = output.resolveSibling(output.getFileName() + FINGERPRINT_SUFFIX);
+        try {
+            if (Files.exists(output) && Files.exists(fingerprintFile)
+                    && fingerprint.equals(new String(Files.readAllBytes(fingerprintFile), StandardCharsets.UTF_8))) {
+                JkLog.info(output.getFileName() + " is up to date with its " + inputs.size() + " input reports.");
+                return;
+            }
+            Files.createDirectories(output.getParent());
+            Files.deleteIfExists(fingerprintFile);
+            task.run();
+            Files.write(fingerprintFile, fingerprint.getBytes(StandardCharsets.UTF_8));
+            JkLog.info(output.getFileName() + " produced from " + inputs.size() + " input reports.");
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot produce " + output, e);
+        } catch (XMLStreamException e) {
+            throw new IllegalStateException("Cannot produce " + output, e);
+        }
+    }
+
+    // Package name -> source file name -> line number -> {mi, ci, mb, cb}
+    private static SortedMap<String, SortedMap<String, SortedMap<Integer, int[]>>> readJacoco(List<Path> reports)
+            throws IOException, XMLStreamException {
+        SortedMap<String, SortedMap<String, SortedMap<Integer, int[]>>> result = new TreeMap<>();
+        XMLInputFactory factory = inputFactory();
+        for (Path report : reports) {
+            try (InputStream is = new BufferedInputStream(Files.newInputStream(report))) {
+                XMLStreamReader reader = factory.createXMLStreamReader(is);
+                SortedMap<String, SortedMap<Integer, int[]>> sourceFiles = null;
+                SortedMap<Integer, int[]> lines = null;
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        String name = reader.getLocalName();
+                        if ("package".equals(name)) {
+                            sourceFiles = result.computeIfAbsent(reader.getAttributeValue(null, "name"),
+                                    key -> new TreeMap<>());
+                        } else if ("sourcefile".equals(name) && sourceFiles != null) {
+                            lines = sourceFiles.computeIfAbsent(reader.getAttributeValue(null, "name"),
+                                    key -> new TreeMap<>());
+                        } else if ("line".equals(name) && lines != null) {
+                            mergeLine(lines, reader);
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT && "sourcefile".equals(reader.getLocalName())) {
+                        lines = null;
+                    }
+                }
+                reader.close();
+            }
+        }
+        return result;
+    }
+
+    private static void mergeLine(SortedMap<Integer, int[]> lines, XMLStreamReader reader) {
+        int nr = intAttribute(reader, "nr");
+        int mi = intAttribute(reader, "mi");
+        int ci = intAttribute(reader, "ci");
+        int mb = intAttribute(reader, "mb");
+        int cb = intAttribute(reader, "cb");
+        int[] counters = lines.get(nr);
+        if (counters == null) {
+            lines.put(nr, new int[] {mi, ci, mb, cb});
+            return;
+        }
+        int instructions = Math.max(counters[0] + counters[1], mi + ci);
+        int branches = Math.max(counters[2] + counters[3], mb + cb);
+        counters[1] = Math.max(counters[1], ci);
+        counters[0] = instructions - counters[1];
+        counters[3] = Math.max(counters[3], cb);
+        counters[2] = branches - counters[3];
+    }
+
+    private static int intAttribute(XMLStreamReader reader, String name) {
+        String value = reader.getAttributeValue(null, name);
+        return value == null ? 0 : Integer.parseInt(value);
+    }
+
+    private static void writeJacoco(Path output,
+                                    SortedMap<String, SortedMap<String, SortedMap<Integer, int[]>>> packages)
+            throws IOException, XMLStreamException {
+        writeAtomically(output, writer -> {
+            writer.writeStartElement("report");
+            writer.writeAttribute("name", "merged");
+            for (Map.Entry<String, SortedMap<String, SortedMap<Integer, int[]>>> pack : packages.entrySet()) {
+                writer.writeStartElement("package");
+                writer.writeAttribute("name", pack.getKey());
+                for (Map.Entry<String, SortedMap<Integer, int[]>> sourceFile : pack.getValue().entrySet()) {
+                    writer.writeStartElement("sourcefile");
+                    writer.writeAttribute("name", sourceFile.getKey());
+                    for (Map.Entry<Integer, int[]> line : sourceFile.getValue().entrySet()) {
+                        int[] counters = line.getValue();
+                        writer.writeEmptyElement("line");
+                        writer.writeAttribute("nr", Integer.toString(line.getKey()));
+                        writer.writeAttribute("mi", Integer.toString(counters[0]));
+                        writer.writeAttribute("ci", Integer.toString(counters[1]));
+                        writer.writeAttribute("mb", Integer.toString(counters[2]));
+                        writer.writeAttribute("cb", Integer.toString(counters[3]));
+                    }
+                    writer.writeEndElement();
+                }
+                writer.writeEndElement();
+            }
+            writer.writeEndElement();
+        });
+    }
+
+    private static void writeJunit(Path output, List<Path> reports) throws IOException, XMLStreamException {
+        XMLInputFactory factory = inputFactory();
+        writeAtomically(output, writer -> {
+            writer.writeStartElement("testsuites");
+            for (Path report : reports) {
+                try (InputStream is = new BufferedInputStream(Files.newInputStream(report))) {
+                    XMLStreamReader reader = factory.createXMLStreamReader(is);
+                    copyTestSuites(reader, writer);
+                    reader.close();
+                }
+            }
+            writer.writeEndElement();
+        });
+    }
+
+    // Copies elements except the 'testsuites' root and output elements, the scanner does not read.
+    private static void copyTestSuites(XMLStreamReader reader, XMLStreamWriter writer) throws XMLStreamException {
+        int skippedDepth = 0;
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                if (skippedDepth > 0 || "system-out".equals(name) || "system-err".equals(name)) {
+                    skippedDepth++;
+                } else if (!"testsuites".equals(name)) {
+                    writer.writeStartElement(name);
+                    for (int i = 0; i < reader.getAttributeCount(); i++) {
+                        writer.writeAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+                    }
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                if (skippedDepth > 0) {
+                    skippedDepth--;
+                } else if (!"testsuites".equals(reader.getLocalName())) {
+                    writer.writeEndElement();
+                }
+            } else if (skippedDepth == 0 && (event == XMLStreamConstants.CHARACTERS
+                    || event == XMLStreamConstants.CDATA) && !reader.isWhiteSpace()) {
+                writer.writeCharacters(reader.getText());
+            }
+        }
+    }
+
+    private static XMLInputFactory inputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    private static void writeAtomically(Path output, XmlWriterTask task) throws IOException, XMLStreamException {
+        Path tempFile = Files.createTempFile(output.getParent(), output.getFileName().toString(), ".tmp");
+        try (Writer out = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+            XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out);
+            writer.writeStartDocument("UTF-8", "1.0");
+            task.write(writer);
+            writer.writeEndDocument();
+            writer.close();
+        }
+        Files.move(tempFile, output, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    static List<Path> xmlFiles(Path fileOrDir, boolean recursive) {
+        if (!Files.isDirectory(fileOrDir)) {
+            return Files.isRegularFile(fileOrDir) ? Collections.singletonList(fileOrDir) : Collections.emptyList();
+        }
+        try (Stream<Path> paths = Files.walk(fileOrDir, recursive ? Integer.MAX_VALUE : 1)) {
+            return paths.filter(path -> path.toString().endsWith(".xml") && Files.isRegularFile(path))
+                    .sorted()
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot walk " + fileOrDir, e);
+        }
+    }
+
+    private interface XmlTask {
+
+        void run() throws IOException, XMLStreamException;
+    }
+
+    private interface XmlWriterTask {
+
+        void write(XMLStreamWriter writer) throws IOException, XMLStreamException;
+    }
+
+}
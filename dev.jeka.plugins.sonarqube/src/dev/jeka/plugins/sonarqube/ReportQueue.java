@@ -0,0 +1,489 @@
+package dev.jeka.plugins.sonarqube;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import dev.jeka.core.api.system.JkLog;
+
+import java.io.*;
+import java.net.BindException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Queue of analysis reports waiting to be submitted to the server.<p>
+ * Reports are queued by a local proxy standing for the server during analysis : every request is forwarded
+ * to the server, except report submission which is stored in the queue and acknowledged with a fake task id.
+ * Queued reports are later uploaded in batch. Reports of a same project are uploaded in queuing order, as the
+ * server processes them in submission order.<p>
+ * An entry is made of a '.body' file holding the submitted multipart content and a '.properties' file, written
+ * last, holding its content type and project key. Authorization headers are not stored.<p>
+ * The proxy listens on the same port from one run to the next when possible, as the proxy URL stands for
+ * the server URL in scanner settings, and started scanners are reused for identical settings only.
+ */
+final class ReportQueue {
+
+    private static final String SUBMIT_PATH = "/api/ce/submit";
+
+    private static final String BODY_EXT = ".body";
+
+    private static final String PROPERTIES_EXT = ".properties";
+
+    private static final String FAILED_DIR = "failed";
+
+    private static final String PORT_FILE = "proxy.port";
+
+    private static final String PROJECT_KEY_DISPOSITION = "name=\"projectKey\"";
+
+    // Longer lines are not kept entirely while looking for boundaries and part headers
+    private static final int MAX_LINE_LENGTH = 1024;
+
+    // Hop-by-hop headers and headers recomputed by the HTTP client
+    private static final Set<String> NOT_FORWARDED_HEADERS = new HashSet<>(Arrays.asList("host", "connection",
+            "content-length", "transfer-encoding", "keep-alive", "proxy-connection", "upgrade"));
+
+    private static final long INITIAL_RETRY_DELAY_MILLIS = 1000;
+
+    private static final long MAX_RETRY_DELAY_MILLIS = 30_000;
+
+    private final Path queueDir;
+
+    ReportQueue(Path queueDir) {
+        this.queueDir = queueDir;
+    }
+
+    /**
+     * Starts a proxy forwarding to the specified server on a free local port.
+     */
+    Proxy startProxy(String serverUrl) {
+        try {
+            Files.createDirectories(queueDir);
+            HttpServer server = createServer();
+            ExecutorService executorService = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "sonar-report-queue-proxy");
+                thread.setDaemon(true);
+                return thread;
+            });
+            server.setExecutor(executorService);
+            server.createContext("/", exchange -> {
+                try {
+                    if ("POST".equals(exchange.getRequestMethod())
+                            && exchange.getRequestURI().getPath().endsWith(SUBMIT_PATH)) {
+                        enqueue(exchange);
+                    } else {
+                        forward(exchange, serverUrl);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    JkLog.warn("Sonar report queue proxy failed on " + exchange.getRequestURI() + " : " + e);
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_BAD_GATEWAY, -1);
+                } finally {
+                    exchange.close();
+                }
+            });
+            server.start();
+            return new Proxy(server, executorService);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot start sonar report queue proxy.", e);
+        }
+    }
+
+    // Binds the port used by the previous proxy if it is free, or a new free port which is then recorded.
+    private HttpServer createServer() throws IOException {
+        Path portFile = queueDir.resolve(PORT_FILE);
+        int previousPort = 0;
+        try {
+            previousPort = Integer.parseInt(new String(Files.readAllBytes(portFile), StandardCharsets.US_ASCII).trim());
+        } catch (IOException | NumberFormatException e) {
+            // No previous port recorded
+        }
+        if (previousPort > 0) {
+            try {
+                return HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), previousPort), 0);
+            } catch (BindException e) {
+                JkLog.trace("Port " + previousPort + " of sonar report queue proxy is busy. Use another one.");
+            }
+        }
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        Path tempFile = Files.createTempFile(queueDir, PORT_FILE, ".tmp");
+        Files.write(tempFile, Integer.toString(server.getAddress().getPort()).getBytes(StandardCharsets.US_ASCII));
+        Files.move(tempFile, portFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return server;
+    }
+
+    static final class Proxy implements Closeable {
+
+        private final HttpServer server;
+
+        private final ExecutorService executorService;
+
+        private Proxy(HttpServer server, ExecutorService executorService) {
+            this.server = server;
+            this.executorService = executorService;
+        }
+
+        String url() {
+            return "http://127.0.0.1:" + server.getAddress().getPort();
+        }
+
+        @Override
+        public void close() {
+            server.stop(0);
+            executorService.shutdownNow();
+        }
+    }
+
+    private void enqueue(HttpExchange exchange) throws IOException {
+        String id = String.format("%d-%s", System.currentTimeMillis(), UUID.randomUUID().toString().substring(0, 8));
+        Path bodyFile = queueDir.resolve(id + BODY_EXT);
+        try (InputStream is = exchange.getRequestBody()) {
+            Files.copy(is, bodyFile);
+        }
+        Properties properties = new Properties();
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (contentType != null) {
+            properties.setProperty("contentType", contentType);
+        }
+        final String projectKey;
+        try (InputStream is = Files.newInputStream(bodyFile)) {
+            projectKey = projectKey(is);
+        }
+        if (projectKey != null) {
+            properties.setProperty("projectKey", projectKey);
+        }
+        Path tempFile = Files.createTempFile(queueDir, id, ".tmp");
+        try (OutputStream os = Files.newOutputStream(tempFile)) {
+            properties.store(os, null);
+        }
+        Files.move(tempFile, queueDir.resolve(id + PROPERTIES_EXT), StandardCopyOption.ATOMIC_MOVE);
+        String taskId = "queued-" + id;
+        String accept = exchange.getRequestHeaders().getFirst("Accept");
+        final byte[] response;
+        if (accept != null && accept.contains("protobuf")) {
+            exchange.getResponseHeaders().set("Content-Type", "application/x-protobuf");
+            response = submitResponseProtobuf(taskId);
+        } else {
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            response = ("{\"taskId\":\"" + taskId + "\"}").getBytes(StandardCharsets.UTF_8);
+        }
+        exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, response.length);
+        exchange.getResponseBody().write(response);
+    }
+
+    // Ce.SubmitResponse message, whose field 1 is the task id.
+    private static byte[] submitResponseProtobuf(String taskId) {
+        byte[] value = taskId.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0x0A);
+        int length = value.length;
+        while (length > 0x7F) {
+            out.write((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+        out.write(length);
+        out.write(value, 0, value.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns the value of the 'projectKey' part of the specified multipart content, or <code>null</code> if
+     * there is none. The content is read up to the boundary closing this part only, as the report part can
+     * weigh hundreds of megabytes.
+     */
+    static String projectKey(InputStream multipartContent) throws IOException {
+        InputStream in = new BufferedInputStream(multipartContent);
+        String delimiter = null;
+        boolean inHeaders = false;
+        boolean inProjectKey = false;
+        ByteArrayOutputStream value = new ByteArrayOutputStream();
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (readLine(in, line, inProjectKey)) {
+            String text = line.toString("ISO-8859-1");
+            if (delimiter == null) {
+                if (text.startsWith("--")) {
+                    delimiter = text;
+                    inHeaders = true;
+                }
+            } else if (text.startsWith(delimiter)) {
+                if (inProjectKey) {
+                    byte[] bytes = value.toByteArray();
+                    // Drops the line break preceding the delimiter
+                    return new String(bytes, 0, Math.max(0, bytes.length - 2), StandardCharsets.UTF_8);
+                }
+                inHeaders = true;
+            } else if (inHeaders) {
+                if (text.isEmpty()) {
+                    inHeaders = false;
+                } else if (text.toLowerCase(Locale.ROOT).startsWith("content-disposition:")
+                        && text.contains(PROJECT_KEY_DISPOSITION)) {
+                    inProjectKey = true;
+                }
+            } else if (inProjectKey) {
+                line.writeTo(value);
+                value.write('\r');
+                value.write('\n');
+            }
+        }
+        return null;
+    }
+
+    // Reads a CRLF or LF terminated line, without its terminator. Bytes beyond MAX_LINE_LENGTH are dropped
+    // unless the whole line is requested. Returns false at the end of the stream.
+    private static boolean readLine(InputStream in, ByteArrayOutputStream line, boolean whole) throws IOException {
+        line.reset();
+        int b = in.read();
+        if (b == -1) {
+            return false;
+        }
+        while (b != -1 && b != '\n') {
+            if (whole || line.size() < MAX_LINE_LENGTH) {
+                line.write(b);
+            }
+            b = in.read();
+        }
+        byte[] bytes = line.toByteArray();
+        if (bytes.length > 0 && bytes[bytes.length - 1] == '\r') {
+            line.reset();
+            line.write(bytes, 0, bytes.length - 1);
+        }
+        return true;
+    }
+
+    private static void forward(HttpExchange exchange, String serverUrl) throws IOException {
+        String target = serverUrl.replaceAll("/+$", "") + exchange.getRequestURI().getRawPath()
+                + (exchange.getRequestURI().getRawQuery() == null ? "" : "?" + exchange.getRequestURI().getRawQuery());
+        HttpURLConnection connection = (HttpURLConnection) new URL(target).openConnection();
+        connection.setInstanceFollowRedirects(false);
+        connection.setRequestMethod(exchange.getRequestMethod());
+        exchange.getRequestHeaders().forEach((name, values) -> {
+            if (!NOT_FORWARDED_HEADERS.contains(name.toLowerCase(Locale.ROOT))) {
+                values.forEach(value -> connection.addRequestProperty(name, value));
+            }
+        });
+        String requestLength = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (requestLength != null || exchange.getRequestHeaders().containsKey("Transfer-Encoding")) {
+            connection.setDoOutput(true);
+            try (InputStream is = exchange.getRequestBody(); OutputStream os = connection.getOutputStream()) {
+                copy(is, os);
+            }
+        }
+        int code = connection.getResponseCode();
+        connection.getHeaderFields().forEach((name, values) -> {
+            if (name != null && !NOT_FORWARDED_HEADERS.contains(name.toLowerCase(Locale.ROOT))) {
+                exchange.getResponseHeaders().put(name, values);
+            }
+        });
+        InputStream responseBody = code >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        if (responseBody == null || "HEAD".equals(exchange.getRequestMethod()) || code == 204 || code == 304) {
+            exchange.sendResponseHeaders(code, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(code, 0);
+        try (InputStream is = responseBody) {
+            copy(is, exchange.getResponseBody());
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+    }
+
+    /**
+     * Result of an upload batch.
+     */
+    static final class UploadResult {
+
+        int uploaded;
+
+        int failed;
+
+        int remaining;
+
+        boolean unauthorized;
+
+        @Override
+        public String toString() {
+            return uploaded + " report(s) uploaded, " + failed + " rejected by server, " + remaining
+                    + (unauthorized ? " left in queue as credentials were refused." : " left in queue after retries.");
+        }
+    }
+
+    /**
+     * Uploads queued reports to the specified server, running at most <code>concurrency</code> uploads at once.
+     * Uploads failing on network errors, 429 or 5xx status are retried with exponential backoff, up to
+     * <code>maxAttempts</code> times. Then the entry stays queued for a next batch. Uploaded entries are deleted,
+     * entries rejected with another status are moved to a 'failed' sub-directory, except on 401 and 403 status :
+     * as the credentials would be refused for every report, the entry stays queued and the batch stops.
+     */
+    UploadResult upload(String serverUrl, String login, String password, int concurrency, int maxAttempts) {
+        Map<String, List<String>> entriesByProject = new LinkedHashMap<>();
+        for (String id : queuedIds()) {
+            entriesByProject.computeIfAbsent(String.valueOf(readProperties(id).getProperty("projectKey")),
+                    key -> new ArrayList<>()).add(id);
+        }
+        UploadResult result = new UploadResult();
+        if (entriesByProject.isEmpty()) {
+            return result;
+        }
+        ExecutorService executorService = Executors.newFixedThreadPool(Math.max(1, concurrency));
+        AtomicBoolean unauthorized = new AtomicBoolean();
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (List<String> ids : entriesByProject.values()) {
+                futures.add(executorService.submit(() -> {
+                    for (int i = 0; i < ids.size(); i++) {
+                        UploadStatus status = unauthorized.get() ? UploadStatus.UNAUTHORIZED
+                                : uploadWithRetries(ids.get(i), serverUrl, login, password, maxAttempts);
+                        synchronized (result) {
+                            if (status == UploadStatus.UPLOADED) {
+                                result.uploaded++;
+                            } else if (status == UploadStatus.REJECTED) {
+                                result.failed++;
+                            } else {
+                                if (status == UploadStatus.UNAUTHORIZED) {
+                                    unauthorized.set(true);
+                                    result.unauthorized = true;
+                                }
+                                // Next reports of the project must not be submitted before this one
+                                result.remaining += ids.size() - i;
+                                break;
+                            }
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while uploading sonar reports.", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Sonar report upload failed.", e.getCause());
+        } finally {
+            executorService.shutdownNow();
+        }
+        return result;
+    }
+
+    private enum UploadStatus {
+        UPLOADED, REJECTED, RETRYABLE, UNAUTHORIZED
+    }
+
+    private UploadStatus uploadWithRetries(String id, String serverUrl, String login, String password,
+                                           int maxAttempts) throws InterruptedException {
+        long delay = INITIAL_RETRY_DELAY_MILLIS;
+        for (int attempt = 1; ; attempt++) {
+            String failure;
+            try {
+                int code = post(id, serverUrl, login, password);
+                if (code == HttpURLConnection.HTTP_OK) {
+                    Files.deleteIfExists(queueDir.resolve(id + PROPERTIES_EXT));
+                    Files.deleteIfExists(queueDir.resolve(id + BODY_EXT));
+                    JkLog.info("Uploaded sonar report " + id);
+                    return UploadStatus.UPLOADED;
+                }
+                if (code == HttpURLConnection.HTTP_UNAUTHORIZED || code == HttpURLConnection.HTTP_FORBIDDEN) {
+                    JkLog.warn("Sonar report " + id + " refused by server with HTTP status " + code
+                            + ". Check credentials : reports stay queued.");
+                    return UploadStatus.UNAUTHORIZED;
+                }
+                if (code != 429 && code < 500) {
+                    Path failedDir = Files.createDirectories(queueDir.resolve(FAILED_DIR));
+                    Files.move(queueDir.resolve(id + BODY_EXT), failedDir.resolve(id + BODY_EXT),
+                            StandardCopyOption.REPLACE_EXISTING);
+                    Files.move(queueDir.resolve(id + PROPERTIES_EXT), failedDir.resolve(id + PROPERTIES_EXT),
+                            StandardCopyOption.REPLACE_EXISTING);
+                    JkLog.warn("Sonar report " + id + " rejected by server with HTTP status " + code
+                            + ". Moved to " + failedDir);
+                    return UploadStatus.REJECTED;
+                }
+                failure = "HTTP status " + code;
+            } catch (IOException e) {
+                failure = e.toString();
+            }
+            if (attempt >= maxAttempts) {
+                JkLog.warn("Upload of sonar report " + id + " failed " + attempt + " times (" + failure
+                        + "). It stays queued.");
+                return UploadStatus.RETRYABLE;
+            }
+            JkLog.trace("Upload of sonar report " + id + " failed (" + failure + "). Retry in " + delay + "ms.");
+            Thread.sleep(delay);
+            delay = Math.min(delay * 2, MAX_RETRY_DELAY_MILLIS);
+        }
+    }
+
+    private int post(String id, String serverUrl, String login, String password) throws IOException {
+        Path bodyFile = queueDir.resolve(id + BODY_EXT);
+        HttpURLConnection connection = (HttpURLConnection) new URL(serverUrl.replaceAll("/+$", "")
+                + SUBMIT_PATH).openConnection();
+        connection.setConnectTimeout(10_000);
+        connection.setReadTimeout(120_000);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(Files.size(bodyFile));
+        String contentType = readProperties(id).getProperty("contentType");
+        if (contentType != null) {
+            connection.setRequestProperty("Content-Type", contentType);
+        }
+        if (login != null) {
+            String credentials = login + ":" + (password == null ? "" : password);
+            connection.setRequestProperty("Authorization", "Basic "
+                    + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8)));
+        }
+        try (OutputStream os = connection.getOutputStream()) {
+            Files.copy(bodyFile, os);
+        }
+        int code = connection.getResponseCode();
+        InputStream responseBody = code >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        if (responseBody != null) {
+            try (InputStream is = responseBody) {
+                copy(is, new ByteArrayOutputStream());
+            }
+        }
+        return code;
+    }
+
+    // Ids of complete entries, in queuing order.
+    private List<String> queuedIds() {
+        if (!Files.isDirectory(queueDir)) {
+            return Collections.emptyList();
+        }
+        try (Stream<Path> files = Files.list(queueDir)) {
+            return files
+                    .map(file -> file.getFileName().toString())
+                    .filter(name -> name.endsWith(PROPERTIES_EXT))
+                    .map(name -> name.substring(0, name.length() - PROPERTIES_EXT.length()))
+                    .sorted(Comparator.comparingLong((String id) -> Long.parseLong(id.substring(0, id.indexOf('-'))))
+                            .thenComparing(Comparator.naturalOrder()))
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot list " + queueDir, e);
+        }
+    }
+
+    private Properties readProperties(String id) {
+        Properties properties = new Properties();
+        try (InputStream is = Files.newInputStream(queueDir.resolve(id + PROPERTIES_EXT))) {
+            properties.load(is);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read queued sonar report " + id, e);
+        }
+        return properties;
+    }
+
+}
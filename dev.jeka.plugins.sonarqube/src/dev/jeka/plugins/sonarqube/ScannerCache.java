@@ -0,0 +1,206 @@
+package dev.jeka.plugins.sonarqube;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Manages the cache of a scanner user home, where the scanner stores analyzer plugins downloaded from the
+ * server. Each plugin is stored in its own directory named after its hash, which is the unit of eviction.<p>
+ * The last use of an entry is the most recent access or modification time of its files. On file systems
+ * mounted with 'relatime', access time is updated at most once a day, which is precise enough for eviction.
+ */
+final class ScannerCache {
+
+    private static final String CACHE_DIR = "cache";
+
+    private static final String TEMP_DIR = "_tmp";
+
+    private final Path cacheDir;
+
+    ScannerCache(Path userHome) {
+        this.cacheDir = userHome.resolve(CACHE_DIR);
+    }
+
+    /**
+     * Returns the user home used by the scanner when 'sonar.userHome' is not set.
+     */
+    static Path defaultUserHome() {
+        String env = System.getenv("SONAR_USER_HOME");
+        if (env != null && !env.trim().isEmpty()) {
+            return Paths.get(env);
+        }
+        return Paths.get(System.getProperty("user.home"), ".sonar");
+    }
+
+    /**
+     * Deletes least recently used entries until cache size does not exceed the specified budget.
+     * Returns the number of bytes freed.
+     *
+     * @param logConsumer Receives messages along their level.
+     */
+    long evict(long budgetBytes, BiConsumer<String, String> logConsumer) {
+        if (!Files.isDirectory(cacheDir)) {
+            return 0;
+        }
+        List<Entry> entries = entries();
+        long total = entries.stream().mapToLong(entry -> entry.size).sum();
+        entries.sort(Comparator.comparing(entry -> entry.lastUse));
+        long freed = 0;
+        for (Entry entry : entries) {
+            if (total - freed <= budgetBytes) {
+                break;
+            }
+            deleteTree(entry.path, logConsumer);
+            freed += entry.size;
+            logConsumer.accept("Evicted " + entry.path + " from scanner cache.", "DEBUG");
+        }
+        return freed;
+    }
+
+    /**
+     * Writes the cache content in a zip archive, so CI cache steps can save and restore a single file.
+     * The last use of each file is stored as its entry time, and is not altered by reading the file.
+     */
+    void exportTo(Path archive) {
+        try {
+            Path parent = archive.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            Path tempFile = Files.createTempFile(parent, archive.getFileName().toString(), ".tmp");
+            try (ZipOutputStream zip = new ZipOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                // Cached plugins are jars, so already compressed
+                zip.setLevel(Deflater.BEST_SPEED);
+                for (Path file : files()) {
+                    BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                    FileTime lastUse = max(attributes.lastAccessTime(), attributes.lastModifiedTime());
+                    ZipEntry zipEntry = new ZipEntry(cacheDir.relativize(file).toString().replace('\\', '/'));
+                    zipEntry.setLastModifiedTime(lastUse);
+                    zip.putNextEntry(zipEntry);
+                    Files.copy(file, zip);
+                    zip.closeEntry();
+                    Files.getFileAttributeView(file, BasicFileAttributeView.class)
+                            .setTimes(null, attributes.lastAccessTime(), null);
+                }
+            }
+            Files.move(tempFile, archive, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot export scanner cache to " + archive, e);
+        }
+    }
+
+    /**
+     * Restores cache content from an archive created by {@link #exportTo(Path)}, along the last use of each
+     * file. Existing files are kept.
+     */
+    void importFrom(Path archive) {
+        try (ZipInputStream zip = new ZipInputStream(new BufferedInputStream(Files.newInputStream(archive)))) {
+            ZipEntry zipEntry;
+            while ((zipEntry = zip.getNextEntry()) != null) {
+                Path target = cacheDir.resolve(zipEntry.getName()).normalize();
+                if (!target.startsWith(cacheDir.normalize())) {
+                    throw new IllegalStateException("Entry " + zipEntry.getName() + " of " + archive
+                            + " is outside of the cache dir.");
+                }
+                if (zipEntry.isDirectory() || Files.exists(target)) {
+                    continue;
+                }
+                Files.createDirectories(target.getParent());
+                Path tempFile = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+                Files.copy(zip, tempFile, StandardCopyOption.REPLACE_EXISTING);
+                Files.getFileAttributeView(tempFile, BasicFileAttributeView.class)
+                        .setTimes(zipEntry.getLastModifiedTime(), zipEntry.getLastModifiedTime(), null);
+                Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot import scanner cache from " + archive, e);
+        }
+    }
+
+    private static final class Entry {
+
+        final Path path;
+
+        final long size;
+
+        final FileTime lastUse;
+
+        Entry(Path path, long size, FileTime lastUse) {
+            this.path = path;
+            this.size = size;
+            this.lastUse = lastUse;
+        }
+    }
+
+    private List<Entry> entries() {
+        if (!Files.isDirectory(cacheDir)) {
+            return new ArrayList<>();
+        }
+        try (Stream<Path> children = Files.list(cacheDir)) {
+            return children
+                    .filter(path -> !TEMP_DIR.equals(path.getFileName().toString()))
+                    .map(ScannerCache::entry)
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot list " + cacheDir, e);
+        }
+    }
+
+    private static Entry entry(Path path) {
+        long[] size = {0};
+        FileTime[] lastUse = {FileTime.fromMillis(0)};
+        try {
+            Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    size[0] += attributes.size();
+                    lastUse[0] = max(lastUse[0], max(attributes.lastAccessTime(), attributes.lastModifiedTime()));
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot walk " + path, e);
+        }
+        return new Entry(path, size[0], lastUse[0]);
+    }
+
+    private static FileTime max(FileTime time1, FileTime time2) {
+        return time1.compareTo(time2) >= 0 ? time1 : time2;
+    }
+
+    private List<Path> files() throws IOException {
+        if (!Files.isDirectory(cacheDir)) {
+            return new ArrayList<>();
+        }
+        try (Stream<Path> paths = Files.walk(cacheDir)) {
+            return paths
+                    .filter(Files::isRegularFile)
+                    .filter(path -> !cacheDir.relativize(path).startsWith(TEMP_DIR))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static void deleteTree(Path path, BiConsumer<String, String> logConsumer) {
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path item : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(item);
+            }
+        } catch (IOException e) {
+            logConsumer.accept("Cannot evict " + path + " from scanner cache : " + e.getMessage(), "WARN");
+        }
+    }
+
+}
@@ -0,0 +1,107 @@
+package dev.jeka.plugins.sonarqube;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+
+/**
+ * Manages AppCDS archives speeding up forked scanner JVM startup.<p>
+ * The first fork for a given scanner jar and JDK dumps loaded classes in an archive stored along the scanner
+ * jar cache. Next forks map this archive. Archives are keyed by scanner jar checksum and JDK identity, so
+ * changing scanner version or JDK leads to a new archive. Dynamic archiving requires JDK 13 or later.<p>
+ * As concurrent forks may dump classes at once, each one dumps to its own file, which is then moved to the
+ * archive path under a lock, unless another fork has published the archive meanwhile.
+ */
+final class ScannerCds {
+
+    private static final Path CDS_DIR = ScannerJarCache.CACHE_DIR.resolve("cds");
+
+    private final List<String> jvmOptions;
+
+    private final Path archive;
+
+    private final Path dumpFile;
+
+    private final BiConsumer<String, String> logConsumer;
+
+    private ScannerCds(List<String> jvmOptions, Path archive, Path dumpFile, BiConsumer<String, String> logConsumer) {
+        this.jvmOptions = jvmOptions;
+        this.archive = archive;
+        this.dumpFile = dumpFile;
+        this.logConsumer = logConsumer;
+    }
+
+    /**
+     * Returns an object providing JVM options to use or create the archive matching the specified scanner jar
+     * checksum and the running JDK.
+     *
+     * @param logConsumer Receives messages along their level.
+     */
+    static ScannerCds of(String scannerJarChecksum, BiConsumer<String, String> logConsumer) {
+        if (javaFeatureVersion() < 13) {
+            logConsumer.accept("Class data sharing archive requires JDK 13 or later. Ignored.", "DEBUG");
+            return new ScannerCds(Collections.emptyList(), null, null, logConsumer);
+        }
+        String jdkId = System.getProperty("java.home") + "|" + System.getProperty("java.vm.version");
+        Path archive = CDS_DIR.resolve(Checksums.of(scannerJarChecksum + "|" + jdkId) + ".jsa");
+        if (Files.isRegularFile(archive)) {
+            return new ScannerCds(Arrays.asList("-XX:SharedArchiveFile=" + archive, "-Xshare:auto"), archive,
+                    null, logConsumer);
+        }
+        try {
+            Files.createDirectories(CDS_DIR);
+        } catch (IOException e) {
+            logConsumer.accept("Cannot create class data sharing archive dir " + CDS_DIR + " : " + e.getMessage(),
+                    "WARN");
+            return new ScannerCds(Collections.emptyList(), null, null, logConsumer);
+        }
+        Path dumpFile = CDS_DIR.resolve(archive.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        logConsumer.accept("Scanner classes will be archived in " + archive, "DEBUG");
+        return new ScannerCds(Collections.singletonList("-XX:ArchiveClassesAtExit=" + dumpFile), archive, dumpFile,
+                logConsumer);
+    }
+
+    /**
+     * Returns options to pass to the forked scanner JVM. Returns an empty list if the running JDK does not
+     * support dynamic archiving.
+     */
+    List<String> jvmOptions() {
+        return jvmOptions;
+    }
+
+    /**
+     * Publishes the archive dumped by the forked JVM, if any. To be called once the fork has exited.
+     */
+    void publishArchive() {
+        if (dumpFile == null || !Files.exists(dumpFile)) {
+            return;
+        }
+        FileLocks.withLock(CDS_DIR.resolve("cds.lock"), () -> {
+            try {
+                if (Files.exists(archive)) {
+                    Files.delete(dumpFile);
+                } else {
+                    Files.move(dumpFile, archive, StandardCopyOption.ATOMIC_MOVE);
+                }
+            } catch (IOException e) {
+                logConsumer.accept("Cannot publish class data sharing archive " + archive + " : "
+                        + e.getMessage(), "WARN");
+            }
+        });
+    }
+
+    private static int javaFeatureVersion() {
+        String version = System.getProperty("java.specification.version");
+        if (version.startsWith("1.")) {
+            return Integer.parseInt(version.substring(2));
+        }
+        return Integer.parseInt(version);
+    }
+
+}
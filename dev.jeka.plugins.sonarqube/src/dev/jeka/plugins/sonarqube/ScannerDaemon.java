@@ -0,0 +1,280 @@
+package dev.jeka.plugins.sonarqube;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Long-lived JVM running sonar analyses sent by {@link ScannerDaemonClient} over a loopback socket, so
+ * JIT-compiled code and scanner classes survive between Jeka invocations.<p>
+ * The daemon publishes its port, an authentication token, the scanner version it runs and the JVM options
+ * requested by the client which started it in a state file. It stops by itself after the idle timeout, or when
+ * asked to by a client needing another scanner version or other JVM options. Analyses already running complete
+ * before it exits.<p>
+ * Each connection is handled on its own thread. Analyses against distinct servers or credentials run
+ * concurrently, while analyses sharing them run one after the other on the same started scanner.<p>
+ * This class must not depend on Jeka classes as the daemon classpath only contains this plugin.
+ */
+final class ScannerDaemon {
+
+    static final String STATE_PORT = "port";
+
+    static final String STATE_TOKEN = "token";
+
+    static final String STATE_VERSION = "version";
+
+    static final String STATE_PID = "pid";
+
+    static final String STATE_JVM_OPTIONS = "jvmOptions";
+
+    static final String COMMAND_ANALYSE = "ANALYSE";
+
+    static final String COMMAND_SHUTDOWN = "SHUTDOWN";
+
+    static final byte RECORD_LOG = 'L';
+
+    static final byte RECORD_EXIT = 'E';
+
+    private final Path scannerJar;
+
+    private final String version;
+
+    private final Path stateFile;
+
+    private final int idleTimeoutMillis;
+
+    private final List<String> jvmOptions;
+
+    private final String token;
+
+    private final AtomicInteger activeAnalyses = new AtomicInteger();
+
+    private volatile boolean shutdownRequested;
+
+    ScannerDaemon(Path scannerJar, String version, Path stateFile, int idleTimeoutMillis, List<String> jvmOptions) {
+        this.scannerJar = scannerJar;
+        this.version = version;
+        this.stateFile = stateFile;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.jvmOptions = jvmOptions;
+        byte[] random = new byte[16];
+        new SecureRandom().nextBytes(random);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : random) {
+            sb.append(String.format("%02x", b));
+        }
+        this.token = sb.toString();
+    }
+
+    /**
+     * Arguments are : scanner jar path, scanner version, state file path, idle timeout in seconds, then the JVM
+     * options the daemon has been started with, as requested by the client. Only these options are compared
+     * by clients, so options coming from the environment (e.g. JAVA_TOOL_OPTIONS) do not cause restarts.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 4) {
+            System.err.println("Usage : ScannerDaemon <scanner jar> <scanner version> <state file> "
+                    + "<idle timeout seconds> [jvm options...]");
+            System.exit(2);
+        }
+        new ScannerDaemon(Paths.get(args[0]), args[1], Paths.get(args[2]), Integer.parseInt(args[3]) * 1000,
+                Arrays.asList(args).subList(4, args.length)).serve();
+        System.exit(0);
+    }
+
+    private void serve() throws IOException, InterruptedException {
+        InProcessScanner scanner = InProcessScanner.of(scannerJar, version);
+        ExecutorService executorService = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "sonar-daemon-request");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try (ServerSocket serverSocket = new ServerSocket(0, 10, InetAddress.getLoopbackAddress())) {
+            serverSocket.setSoTimeout(idleTimeoutMillis);
+            int port = serverSocket.getLocalPort();
+            publishState(port);
+            log("Sonar scanner daemon " + version + " listening on port " + port);
+            while (true) {
+                final Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (SocketTimeoutException e) {
+                    if (activeAnalyses.get() > 0) {
+                        continue;
+                    }
+                    log("No request received for " + idleTimeoutMillis / 1000 + "s. Shutting down.");
+                    return;
+                }
+                if (shutdownRequested) {
+                    socket.close();
+                    log("Shutdown requested.");
+                    return;
+                }
+                executorService.execute(() -> {
+                    try (Socket client = socket) {
+                        if (!handle(new DataInputStream(new BufferedInputStream(client.getInputStream())),
+                                new DataOutputStream(new BufferedOutputStream(client.getOutputStream())),
+                                scanner::execute)) {
+                            shutdownRequested = true;
+                            wakeUp(port);
+                        }
+                    } catch (EOFException e) {
+                        // Client only probed the port
+                    } catch (IOException | RuntimeException e) {
+                        log("Request failed : " + e);
+                    }
+                });
+            }
+        } finally {
+            unpublishState();
+            executorService.shutdown();
+            if (activeAnalyses.get() > 0) {
+                log("Waiting for " + activeAnalyses.get() + " running analyses to complete.");
+            }
+            executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // The accept loop checks for shutdown request once a connection is accepted.
+    private static void wakeUp(int port) throws IOException {
+        new Socket(InetAddress.getLoopbackAddress(), port).close();
+    }
+
+    String token() {
+        return token;
+    }
+
+    /**
+     * Reads a request and writes its response. Returns <code>false</code> if the daemon has to stop.
+     *
+     * @param analysis Runs the analysis of the received properties, sending scanner output to the log consumer.
+     */
+    boolean handle(DataInputStream in, DataOutputStream out,
+                   BiConsumer<Map<String, String>, BiConsumer<String, String>> analysis) throws IOException {
+        if (!token.equals(readString(in))) {
+            log("Rejected request with invalid token.");
+            return true;
+        }
+        String command = readString(in);
+        if (COMMAND_SHUTDOWN.equals(command)) {
+            return false;
+        }
+        Map<String, String> properties = readMap(in);
+        int exitCode = 0;
+        String error = "";
+        activeAnalyses.incrementAndGet();
+        try {
+            analysis.accept(properties, (message, level) -> {
+                try {
+                    out.writeByte(RECORD_LOG);
+                    writeString(out, level);
+                    writeString(out, message);
+                    out.flush();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            exitCode = 1;
+            error = String.valueOf(e.getMessage());
+        } finally {
+            activeAnalyses.decrementAndGet();
+        }
+        out.writeByte(RECORD_EXIT);
+        out.writeInt(exitCode);
+        writeString(out, error);
+        out.flush();
+        return true;
+    }
+
+    private void publishState(int port) throws IOException {
+        Properties state = new Properties();
+        state.setProperty(STATE_PORT, Integer.toString(port));
+        state.setProperty(STATE_TOKEN, token);
+        state.setProperty(STATE_VERSION, version);
+        state.setProperty(STATE_PID, pid());
+        state.setProperty(STATE_JVM_OPTIONS, String.join(" ", jvmOptions));
+        Files.createDirectories(stateFile.getParent());
+        Path tempFile = Files.createTempFile(stateFile.getParent(), "daemon", ".tmp");
+        try (OutputStream os = Files.newOutputStream(tempFile)) {
+            state.store(os, "Sonar scanner daemon");
+        }
+        Files.move(tempFile, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void unpublishState() {
+        try {
+            if (token.equals(readState(stateFile).getProperty(STATE_TOKEN))) {
+                Files.deleteIfExists(stateFile);
+            }
+        } catch (IOException e) {
+            log("Cannot delete state file " + stateFile + " : " + e);
+        }
+    }
+
+    private static String pid() {
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        int index = name.indexOf('@');
+        return index > 0 ? name.substring(0, index) : name;
+    }
+
+    private static synchronized void log(String message) {
+        System.out.println("[" + new java.util.Date() + "] " + message);
+    }
+
+    static Properties readState(Path stateFile) throws IOException {
+        Properties result = new Properties();
+        if (Files.exists(stateFile)) {
+            try (InputStream is = Files.newInputStream(stateFile)) {
+                result.load(is);
+            }
+        }
+        return result;
+    }
+
+    // Strings are length-prefixed rather than written with writeUTF, as library paths may exceed 64KB.
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeMap(DataOutputStream out, Map<String, String> map) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            writeString(out, entry.getKey());
+            writeString(out, entry.getValue());
+        }
+    }
+
+    static Map<String, String> readMap(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        Map<String, String> result = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            result.put(readString(in), readString(in));
+        }
+        return result;
+    }
+
+}
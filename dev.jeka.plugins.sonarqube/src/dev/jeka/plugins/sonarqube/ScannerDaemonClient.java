@@ -0,0 +1,217 @@
+package dev.jeka.plugins.sonarqube;
+
+import dev.jeka.core.api.system.JkLocator;
+import dev.jeka.core.api.utils.JkUtilsAssert;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.BiConsumer;
+
+/**
+ * Sends analysis requests to a {@link ScannerDaemon}, starting it when no daemon is running, or when the
+ * running one does not match the requested scanner version or JVM options. Checking and starting the daemon
+ * hold a lock in the daemon directory, so concurrent Jeka runs share a single daemon.
+ */
+final class ScannerDaemonClient {
+
+    private static final long START_TIMEOUT_MILLIS = 30_000;
+
+    private final Path scannerJar;
+
+    private final String version;
+
+    private final int idleTimeoutSeconds;
+
+    private final List<String> jvmOptions;
+
+    private final BiConsumer<String, String> logConsumer;
+
+    private final Cancellation cancellation;
+
+    private final Path daemonDir = JkLocator.getCacheDir().resolve("sonarqube/daemon");
+
+    /**
+     * @param logConsumer Receives daemon lifecycle messages and scanner output along their level.
+     * @param cancellation Receives an action closing the connection to the daemon, hence ending the analysis.
+     */
+    ScannerDaemonClient(Path scannerJar, String version, int idleTimeoutSeconds, List<String> jvmOptions,
+                        BiConsumer<String, String> logConsumer, Cancellation cancellation) {
+        this.scannerJar = scannerJar;
+        this.version = version == null ? "embedded" : version;
+        this.idleTimeoutSeconds = idleTimeoutSeconds;
+        this.jvmOptions = jvmOptions;
+        this.logConsumer = logConsumer;
+        this.cancellation = cancellation;
+    }
+
+    void execute(Map<String, String> properties) {
+        Properties state = ensureDaemonRunning();
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port(state))) {
+            cancellation.onCancel(() -> closeQuietly(socket));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            ScannerDaemon.writeString(out, state.getProperty(ScannerDaemon.STATE_TOKEN));
+            ScannerDaemon.writeString(out, ScannerDaemon.COMMAND_ANALYSE);
+            ScannerDaemon.writeMap(out, properties);
+            out.flush();
+            while (true) {
+                byte recordType = in.readByte();
+                if (recordType == ScannerDaemon.RECORD_LOG) {
+                    String level = ScannerDaemon.readString(in);
+                    logConsumer.accept(ScannerDaemon.readString(in), level);
+                } else if (recordType == ScannerDaemon.RECORD_EXIT) {
+                    int exitCode = in.readInt();
+                    String error = ScannerDaemon.readString(in);
+                    JkUtilsAssert.state(exitCode == 0, "Sonar analysis failed : %s", error);
+                    return;
+                } else {
+                    throw new IllegalStateException("Unexpected record type " + recordType
+                            + " received from sonar scanner daemon.");
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Communication with sonar scanner daemon failed. See "
+                    + logFile(), e);
+        }
+    }
+
+    private Properties ensureDaemonRunning() {
+        Path stateFile = stateFile();
+        return FileLocks.withLock(daemonDir.resolve("daemon.lock"), () -> {
+            Properties state = readState(stateFile);
+            if (!state.isEmpty()) {
+                if (version.equals(state.getProperty(ScannerDaemon.STATE_VERSION))
+                        && String.join(" ", jvmOptions).equals(state.getProperty(ScannerDaemon.STATE_JVM_OPTIONS))
+                        && isReachable(state)) {
+                    info("Use sonar scanner daemon " + version + " (pid "
+                            + state.getProperty(ScannerDaemon.STATE_PID) + ")");
+                    return state;
+                }
+                shutdown(state);
+            }
+            return startDaemon(stateFile);
+        });
+    }
+
+    private Properties startDaemon(Path stateFile) {
+        info("Start sonar scanner daemon " + version + ". It will stop after " + idleTimeoutSeconds
+                + "s of inactivity.");
+        String javaCommand = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<String> command = new ArrayList<>();
+        command.add(javaCommand);
+        command.addAll(jvmOptions);
+        command.addAll(Arrays.asList("-cp", pluginClasspath().toString(),
+                ScannerDaemon.class.getName(),
+                scannerJar.toAbsolutePath().toString(),
+                version,
+                stateFile.toString(),
+                Integer.toString(idleTimeoutSeconds)));
+        command.addAll(jvmOptions);
+        ProcessBuilder processBuilder = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(logFile().toFile()));
+        final Process process;
+        try {
+            Files.deleteIfExists(stateFile);
+            process = processBuilder.start();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot start sonar scanner daemon.", e);
+        }
+        long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            Properties state = readState(stateFile);
+            if (!state.isEmpty()) {
+                return state;
+            }
+            JkUtilsAssert.state(process.isAlive(), "Sonar scanner daemon exited at startup. See %s", logFile());
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for sonar scanner daemon.", e);
+            }
+        }
+        process.destroy();
+        throw new IllegalStateException("Sonar scanner daemon did not start within " + START_TIMEOUT_MILLIS
+                + "ms. See " + logFile());
+    }
+
+    private void shutdown(Properties state) {
+        info("Stop sonar scanner daemon " + state.getProperty(ScannerDaemon.STATE_VERSION));
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port(state))) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            ScannerDaemon.writeString(out, state.getProperty(ScannerDaemon.STATE_TOKEN));
+            ScannerDaemon.writeString(out, ScannerDaemon.COMMAND_SHUTDOWN);
+            out.flush();
+        } catch (IOException e) {
+            // Daemon is already gone
+        }
+    }
+
+    private void info(String message) {
+        logConsumer.accept(message, "INFO");
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+
+    private static boolean isReachable(Properties state) {
+        try {
+            new Socket(InetAddress.getLoopbackAddress(), port(state)).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static int port(Properties state) {
+        return Integer.parseInt(state.getProperty(ScannerDaemon.STATE_PORT));
+    }
+
+    private static Properties readState(Path stateFile) {
+        try {
+            return ScannerDaemon.readState(stateFile);
+        } catch (IOException e) {
+            return new Properties();
+        }
+    }
+
+    private Path stateFile() {
+        try {
+            Files.createDirectories(daemonDir);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return daemonDir.resolve("daemon.properties");
+    }
+
+    private Path logFile() {
+        return daemonDir.resolve("daemon.log");
+    }
+
+    // Jar or class dir containing this plugin. The daemon needs nothing else, as the scanner jar
+    // is loaded by InProcessScanner.
+    private static Path pluginClasspath() {
+        try {
+            return Paths.get(ScannerDaemon.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
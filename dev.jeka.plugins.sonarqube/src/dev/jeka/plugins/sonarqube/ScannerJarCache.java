@@ -0,0 +1,176 @@
+package dev.jeka.plugins.sonarqube;
+
+import dev.jeka.core.api.depmanagement.JkRepo;
+import dev.jeka.core.api.depmanagement.JkRepoSet;
+import dev.jeka.core.api.system.JkLocator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Properties;
+import java.util.function.BiConsumer;
+
+/**
+ * Remembers where scanner jars have been resolved, so warm builds get the scanner jar without running
+ * dependency resolution nor copying the embedded jar again.<p>
+ * Entries are keyed by repository set and version spec, and hold the jar path, the effective version and
+ * the jar checksum. Entries for dynamic versions (e.g. '+') expire after a configurable TTL, entries for
+ * static versions never expire. A jar whose checksum does not match its entry anymore invalidates it.
+ */
+final class ScannerJarCache {
+
+    static final Path CACHE_DIR = JkLocator.getCacheDir().resolve("sonarqube");
+
+    private static final Path ENTRY_DIR = CACHE_DIR.resolve("scanner-entries");
+
+    private static final String JAR = "jar";
+
+    private static final String VERSION = "version";
+
+    private static final String CHECKSUM = "checksum";
+
+    private static final String TIMESTAMP = "timestamp";
+
+    private final Duration dynamicVersionTtl;
+
+    private final BiConsumer<String, String> logConsumer;
+
+    /**
+     * @param logConsumer Receives messages along their level.
+     */
+    ScannerJarCache(Duration dynamicVersionTtl, BiConsumer<String, String> logConsumer) {
+        this.dynamicVersionTtl = dynamicVersionTtl;
+        this.logConsumer = logConsumer;
+    }
+
+    static final class Entry {
+
+        final Path jar;
+
+        final String version;
+
+        final String checksum;
+
+        private final long timestamp;
+
+        private Entry(Path jar, String version, String checksum, long timestamp) {
+            this.jar = jar;
+            this.version = version;
+            this.checksum = checksum;
+            this.timestamp = timestamp;
+        }
+
+        private boolean isIntact() {
+            return Files.isRegularFile(jar) && checksum.equals(Checksums.of(jar));
+        }
+    }
+
+    static String key(JkRepoSet repos, String versionSpec) {
+        StringBuilder sb = new StringBuilder();
+        for (JkRepo repo : repos.getRepos()) {
+            sb.append(repo.getUrl()).append('|');
+        }
+        return Checksums.of(sb.append(versionSpec).toString());
+    }
+
+    static String embeddedKey(String jarName) {
+        return Checksums.of("embedded|" + jarName);
+    }
+
+    static boolean isDynamic(String versionSpec) {
+        return versionSpec.contains("+") || versionSpec.contains("[") || versionSpec.contains("(")
+                || versionSpec.startsWith("latest");
+    }
+
+    /**
+     * Returns the entry stored for the specified key if its jar is intact and, for dynamic versions,
+     * if it is not expired. Returns <code>null</code> otherwise.
+     */
+    Entry get(String key, boolean dynamic) {
+        Entry entry = read(key);
+        if (entry == null) {
+            return null;
+        }
+        if (dynamic && System.currentTimeMillis() - entry.timestamp > dynamicVersionTtl.toMillis()) {
+            logConsumer.accept("Cached scanner jar for dynamic version has expired.", "DEBUG");
+            return null;
+        }
+        return entry.isIntact() ? entry : null;
+    }
+
+    /**
+     * Returns the entry stored for the specified key if its jar is intact, regardless of its age.
+     * This is used as a fallback when the repositories cannot be reached.
+     */
+    Entry getIgnoringTtl(String key) {
+        Entry entry = read(key);
+        return entry != null && entry.isIntact() ? entry : null;
+    }
+
+    Entry put(String key, Path jar, String version) {
+        Entry entry = new Entry(jar.toAbsolutePath(), version, Checksums.of(jar), System.currentTimeMillis());
+        Properties props = new Properties();
+        props.setProperty(JAR, entry.jar.toString());
+        props.setProperty(VERSION, version);
+        props.setProperty(CHECKSUM, entry.checksum);
+        props.setProperty(TIMESTAMP, Long.toString(entry.timestamp));
+        try {
+            Files.createDirectories(ENTRY_DIR);
+            Path tempFile = Files.createTempFile(ENTRY_DIR, key, ".tmp");
+            try (OutputStream os = Files.newOutputStream(tempFile)) {
+                props.store(os, null);
+            }
+            Files.move(tempFile, entryFile(key), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            logConsumer.accept("Cannot store scanner cache entry : " + e.getMessage(), "WARN");
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the embedded scanner jar copied in the cache dir, copying it only if it is missing or
+     * corrupted.
+     */
+    Entry embedded(String jarName, String version) {
+        String key = embeddedKey(jarName);
+        Entry entry = get(key, false);
+        if (entry != null) {
+            return entry;
+        }
+        Path target = CACHE_DIR.resolve(jarName);
+        try (InputStream is = JkSonarqube.class.getResourceAsStream(jarName)) {
+            Files.createDirectories(CACHE_DIR);
+            Files.copy(is, target, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot copy embedded scanner jar to " + target, e);
+        }
+        return put(key, target, version);
+    }
+
+    private Entry read(String key) {
+        Path file = entryFile(key);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        Properties props = new Properties();
+        try (InputStream is = Files.newInputStream(file)) {
+            props.load(is);
+            return new Entry(Paths.get(props.getProperty(JAR)), props.getProperty(VERSION),
+                    props.getProperty(CHECKSUM), Long.parseLong(props.getProperty(TIMESTAMP)));
+        } catch (IOException | RuntimeException e) {
+            logConsumer.accept("Ignore unreadable scanner cache entry " + file + " : " + e, "DEBUG");
+            return null;
+        }
+    }
+
+    private static Path entryFile(String key) {
+        return ENTRY_DIR.resolve(key + ".properties");
+    }
+
+}
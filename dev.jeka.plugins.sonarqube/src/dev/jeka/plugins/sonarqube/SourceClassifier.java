@@ -0,0 +1,291 @@
+package dev.jeka.plugins.sonarqube;
+
+import dev.jeka.core.api.system.JkLog;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Detects source files not worth analysing : generated ones, vendored ones (path containing a directory as
+ * 'vendor' or 'third_party'), minified ones and oversized ones.<p>
+ * A file is generated if its header holds a <code>@Generated</code> annotation outside comments and string
+ * literals, or if the comments preceding its first statement (e.g. 'package') hold a generator notice as
+ * 'DO NOT EDIT' or 'auto-generated'. Such words appearing in later comments, as Javadoc, do not count.<p>
+ * Roots are walked in parallel. Header markers are only searched in files whose content hash is unknown, hashes
+ * being reused from a {@link FileHashIndex} while files are unchanged. Results are stored in the specified
+ * cache dir.
+ */
+final class SourceClassifier {
+
+    enum Reason {
+        GENERATED, VENDORED, MINIFIED, OVERSIZED
+    }
+
+    private static final int HEADER_SIZE = 4096;
+
+    private static final Pattern GENERATED_ANNOTATION = Pattern.compile("(?<![\\w.$])@(?:[\\w.]+\\.)?Generated\\b");
+
+    private static final Pattern GENERATOR_NOTICE = Pattern.compile(
+            "(?i)do not (?:edit|modify)|auto[- ]?generated|(?:code )?generated (?:by|from|with)");
+
+    private static final Pattern MINIFIED_NAME = Pattern.compile(".*[.-]min\\.(js|css)");
+
+    private static final Set<String> VENDORED_DIRS = new HashSet<>(Arrays.asList("vendor", "vendors",
+            "third_party", "third-party", "thirdparty", "node_modules", "bower_components"));
+
+    private static final String HASH_INDEX_FILE = "hash-index.txt";
+
+    // Name changes along the detection rules, so classifications made with former rules are ignored
+    private static final String GENERATED_FILE = "generated-2.txt";
+
+    private static final String SEPARATOR = "\t";
+
+    private final Path cacheDir;
+
+    private final long maxFileSize;
+
+    SourceClassifier(Path cacheDir, long maxFileSize) {
+        this.cacheDir = cacheDir;
+        this.maxFileSize = maxFileSize;
+    }
+
+    /**
+     * Classification of all the files found under source roots.
+     */
+    static final class Result {
+
+        private final Map<Path, Path> roots;
+
+        private final Map<Path, Long> sizes;
+
+        private final Map<Path, Reason> excluded;
+
+        private Result(Map<Path, Path> roots, Map<Path, Long> sizes, Map<Path, Reason> excluded) {
+            this.roots = roots;
+            this.sizes = sizes;
+            this.excluded = excluded;
+        }
+
+        /**
+         * Returns patterns, relative to the specified base dir, matching the files excluded for one of the
+         * specified reasons. Directories under a source root whose files are all excluded are matched with
+         * a single pattern.
+         */
+        List<String> patterns(Path baseDir, Set<Reason> reasons) {
+            Set<Path> matched = excluded.entrySet().stream()
+                    .filter(entry -> reasons.contains(entry.getValue()))
+                    .map(Map.Entry::getKey)
+                    .collect(Collectors.toSet());
+            Map<Path, Boolean> fullyMatchedDirs = new HashMap<>();
+            for (Path file : sizes.keySet()) {
+                boolean fileMatched = matched.contains(file);
+                Path root = roots.get(file);
+                for (Path dir = file.getParent(); !dir.equals(root); dir = dir.getParent()) {
+                    fullyMatchedDirs.merge(dir, fileMatched, Boolean::logicalAnd);
+                }
+            }
+            SortedSet<String> result = new TreeSet<>();
+            for (Path file : matched) {
+                Path topDir = null;
+                for (Path dir = file.getParent(); fullyMatchedDirs.getOrDefault(dir, false); dir = dir.getParent()) {
+                    topDir = dir;
+                }
+                String pattern = topDir == null ? relative(baseDir, file) : relative(baseDir, topDir) + "/**";
+                result.add(pattern);
+            }
+            return new ArrayList<>(result);
+        }
+
+        /**
+         * Returns excluded files along the reason of their exclusion, sorted by path.
+         */
+        SortedMap<Path, Reason> excludedFiles() {
+            return new TreeMap<>(excluded);
+        }
+
+        String summary() {
+            long totalSize = sizes.values().stream().mapToLong(Long::longValue).sum();
+            long excludedSize = excluded.keySet().stream().mapToLong(sizes::get).sum();
+            Map<Reason, Long> counts = excluded.values().stream()
+                    .collect(Collectors.groupingBy(reason -> reason, () -> new EnumMap<>(Reason.class),
+                            Collectors.counting()));
+            return "Excluded " + excluded.size() + " source files out of " + sizes.size() + " (" + excludedSize / 1024
+                    + " KB out of " + totalSize / 1024 + " KB) " + counts;
+        }
+
+        private static String relative(Path baseDir, Path path) {
+            return baseDir.relativize(path).toString().replace('\\', '/');
+        }
+    }
+
+    Result classify(List<Path> roots) {
+        FileHashIndex hashIndex = FileHashIndex.load(cacheDir.resolve(HASH_INDEX_FILE), JkSonarqube::logToJkLog);
+        Map<String, Boolean> knownGenerated = loadGenerated();
+        // Only hashes of current files are stored, so the classification file does not grow with history
+        Map<String, Boolean> generatedByHash = new ConcurrentHashMap<>();
+        Map<Path, Path> fileRoots = new ConcurrentHashMap<>();
+        Map<Path, Long> sizes = new ConcurrentHashMap<>();
+        Map<Path, Reason> excluded = new ConcurrentHashMap<>();
+        roots.parallelStream()
+                .map(Path::toAbsolutePath)
+                .filter(Files::isDirectory)
+                .forEach(root -> regularFiles(root).parallelStream().forEach(file -> {
+                    long size = size(file);
+                    fileRoots.put(file, root);
+                    sizes.put(file, size);
+                    Reason reason = classify(root.relativize(file), size, () -> generatedByHash.computeIfAbsent(
+                            hashIndex.hash(file), hash -> knownGenerated.computeIfAbsent(hash,
+                                    unknownHash -> hasGeneratedMarker(file))));
+                    if (reason != null) {
+                        excluded.put(file, reason);
+                    }
+                }));
+        hashIndex.save(cacheDir.resolve(HASH_INDEX_FILE));
+        saveGenerated(generatedByHash);
+        return new Result(fileRoots, sizes, excluded);
+    }
+
+    private Reason classify(Path relativeFile, long size, BooleanSupplier generated) {
+        Path parent = relativeFile.getParent();
+        if (parent != null) {
+            for (Path segment : parent) {
+                if (VENDORED_DIRS.contains(segment.toString())) {
+                    return Reason.VENDORED;
+                }
+            }
+        }
+        if (MINIFIED_NAME.matcher(relativeFile.getFileName().toString()).matches()) {
+            return Reason.MINIFIED;
+        }
+        if (size > maxFileSize) {
+            return Reason.OVERSIZED;
+        }
+        return generated.getAsBoolean() ? Reason.GENERATED : null;
+    }
+
+    private static boolean hasGeneratedMarker(Path file) {
+        byte[] header = new byte[HEADER_SIZE];
+        int length = 0;
+        try (InputStream is = Files.newInputStream(file)) {
+            int read;
+            while (length < HEADER_SIZE && (read = is.read(header, length, HEADER_SIZE - length)) != -1) {
+                length += read;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read " + file, e);
+        }
+        return hasGeneratedMarker(new String(header, 0, length, StandardCharsets.ISO_8859_1));
+    }
+
+    static boolean hasGeneratedMarker(String header) {
+        StringBuilder leadingComments = new StringBuilder();
+        StringBuilder code = new StringBuilder();
+        boolean leading = true;
+        int i = 0;
+        while (i < header.length()) {
+            char c = header.charAt(i);
+            int end;
+            if (header.startsWith("//", i) || (leading && c == '#')) {
+                end = indexOrEnd(header, "\n", i);
+            } else if (header.startsWith("/*", i)) {
+                end = indexOrEnd(header, "*/", i + 2) + 2;
+            } else if (c == '"' || c == '\'') {
+                end = literalEnd(header, i);
+                code.append(' ');
+                leading = false;
+                i = end;
+                continue;
+            } else {
+                if (!Character.isWhitespace(c)) {
+                    leading = false;
+                }
+                code.append(c);
+                i++;
+                continue;
+            }
+            end = Math.min(end, header.length());
+            if (leading) {
+                leadingComments.append(header, i, end).append('\n');
+            }
+            code.append(' ');
+            i = end;
+        }
+        return GENERATOR_NOTICE.matcher(leadingComments).find() || GENERATED_ANNOTATION.matcher(code).find();
+    }
+
+    private static int indexOrEnd(String text, String searched, int from) {
+        int index = text.indexOf(searched, from);
+        return index < 0 ? text.length() : index;
+    }
+
+    // Returns the index following the string or char literal starting at the specified index
+    private static int literalEnd(String text, int start) {
+        char quote = text.charAt(start);
+        int i = start + 1;
+        while (i < text.length() && text.charAt(i) != quote && text.charAt(i) != '\n') {
+            i += text.charAt(i) == '\\' ? 2 : 1;
+        }
+        return Math.min(i + 1, text.length());
+    }
+
+    private static List<Path> regularFiles(Path root) {
+        try (Stream<Path> paths = Files.walk(root)) {
+            return paths.filter(Files::isRegularFile).map(Path::toAbsolutePath).collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot walk " + root, e);
+        }
+    }
+
+    private static long size(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read size of " + file, e);
+        }
+    }
+
+    private Map<String, Boolean> loadGenerated() {
+        Map<String, Boolean> result = new ConcurrentHashMap<>();
+        Path file = cacheDir.resolve(GENERATED_FILE);
+        if (Files.exists(file)) {
+            try {
+                for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                    String[] items = line.split(SEPARATOR);
+                    if (items.length == 2) {
+                        result.put(items[0], Boolean.valueOf(items[1]));
+                    }
+                }
+            } catch (IOException e) {
+                JkLog.trace("Ignore unreadable source classification " + file + " : " + e);
+                result.clear();
+            }
+        }
+        return result;
+    }
+
+    private void saveGenerated(Map<String, Boolean> generatedByHash) {
+        List<String> lines = new TreeMap<>(generatedByHash).entrySet().stream()
+                .map(entry -> entry.getKey() + SEPARATOR + entry.getValue())
+                .collect(Collectors.toList());
+        try {
+            Files.createDirectories(cacheDir);
+            Path tempFile = Files.createTempFile(cacheDir, "generated", ".tmp");
+            Files.write(tempFile, lines, StandardCharsets.UTF_8);
+            Files.move(tempFile, cacheDir.resolve(GENERATED_FILE), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            JkLog.warn("Cannot store source classification in " + cacheDir + " : " + e.getMessage());
+        }
+    }
+
+}
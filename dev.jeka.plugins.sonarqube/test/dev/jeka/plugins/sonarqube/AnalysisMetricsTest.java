@@ -0,0 +1,86 @@
+package dev.jeka.plugins.sonarqube;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AnalysisMetricsTest {
+
+    @Test
+    void parse_splitsSensorsFromPhasesAndSumsRepeatedOnes(@TempDir Path dir) throws Exception {
+        AnalysisMetrics metrics = new AnalysisMetrics();
+        metrics.parse("Sensor JavaSensor [java] (done) | time=1200ms");
+        metrics.parse("Sensor JavaSensor [java] (done) | time=300ms");
+        metrics.parse("Sensor JaCoCo XML Report Importer [jacoco] (done) | time=15ms");
+        metrics.parse("Load quality profiles (done) | time=120ms");
+        metrics.parse("Load quality profiles (done) | time=30ms ");
+        metrics.parse("1542 source files to be analyzed");
+        metrics.parse("Sensor CSS Rules [javascript] (done) | time=abcms");
+
+        Map<?, ?> report = writeAndRead(metrics, dir);
+
+        Map<?, ?> sensors = (Map<?, ?>) report.get("sensorsMs");
+        assertEquals(2, sensors.size());
+        assertEquals(1500.0, sensors.get("JavaSensor [java]"));
+        assertEquals(15.0, sensors.get("JaCoCo XML Report Importer [jacoco]"));
+        assertEquals(Collections.singletonMap("Load quality profiles", 150.0), report.get("phasesMs"));
+    }
+
+    @Test
+    void parse_firstLineAfterLaunchRecordsScannerStartup(@TempDir Path dir) throws Exception {
+        AnalysisMetrics metrics = new AnalysisMetrics();
+        metrics.parse("line before launch");
+        metrics.scannerLaunched();
+        metrics.parse("first scanner line");
+        metrics.parse("second scanner line");
+        metrics.scannerCompleted();
+        metrics.addDuration("getToolJar", 5);
+        metrics.addDuration("getToolJar", 7);
+
+        Map<?, ?> durations = (Map<?, ?>) writeAndRead(metrics, dir).get("durationsMs");
+
+        assertEquals(3, durations.size());
+        assertTrue(durations.containsKey("scannerStartup"));
+        assertTrue(durations.containsKey("scannerRun"));
+        assertEquals(12.0, durations.get("getToolJar"));
+    }
+
+    @Test
+    void writeReport_escapesAttributes(@TempDir Path dir) throws Exception {
+        AnalysisMetrics metrics = new AnalysisMetrics();
+        Path file = dir.resolve("report/" + AnalysisMetrics.REPORT_FILE);
+        metrics.writeReport(file, Collections.singletonMap("projectKey", "a\"b\\c\nd"), (message, level) -> { });
+
+        Map<?, ?> report = (Map<?, ?>) JsonReader.parse(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+
+        assertEquals("a\"b\\c\nd", report.get("projectKey"));
+        assertEquals(Collections.emptyMap(), report.get("sensorsMs"));
+    }
+
+    @Test
+    void summary_listsFiveSlowestSensorsSlowestFirst() {
+        AnalysisMetrics metrics = new AnalysisMetrics();
+        for (int i = 1; i <= 7; i++) {
+            metrics.parse("Sensor S" + i + " (done) | time=" + i * 1000 + "ms");
+        }
+
+        String summary = metrics.summary();
+
+        assertTrue(summary.contains("Slowest sensors : S7 7.0s, S6 6.0s, S5 5.0s, S4 4.0s, S3 3.0s"), summary);
+        assertFalse(summary.contains("S2 "), summary);
+    }
+
+    private static Map<?, ?> writeAndRead(AnalysisMetrics metrics, Path dir) throws Exception {
+        Path file = dir.resolve(AnalysisMetrics.REPORT_FILE);
+        metrics.writeReport(file, Collections.emptyMap(), (message, level) -> { });
+        return (Map<?, ?>) JsonReader.parse(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+    }
+
+}
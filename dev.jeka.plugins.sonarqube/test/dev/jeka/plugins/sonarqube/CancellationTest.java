@@ -0,0 +1,32 @@
+package dev.jeka.plugins.sonarqube;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CancellationTest {
+
+    @Test
+    void cancel_runsRegisteredAction() {
+        Cancellation cancellation = new Cancellation();
+        AtomicInteger runs = new AtomicInteger();
+        cancellation.onCancel(runs::incrementAndGet);
+        cancellation.cancel();
+        assertEquals(1, runs.get());
+        assertThrows(IllegalStateException.class, cancellation::checkNotRequested);
+    }
+
+    @Test
+    void onCancel_afterCancelRequest_runsActionAtOnce() {
+        Cancellation cancellation = new Cancellation();
+        cancellation.checkNotRequested();
+        cancellation.cancel();
+        AtomicInteger runs = new AtomicInteger();
+        cancellation.onCancel(runs::incrementAndGet);
+        assertEquals(1, runs.get());
+        assertTrue(cancellation.isRequested());
+    }
+
+}
@@ -0,0 +1,35 @@
+package dev.jeka.plugins.sonarqube;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChangedSourcesTest {
+
+    @Test
+    void inclusions_baseDirReachedThroughSymbolicLink_matchesRealPaths(@TempDir Path dir) throws IOException {
+        Path realBaseDir = Files.createDirectories(dir.resolve("real"));
+        Path source = Files.createFile(Files.createDirectories(realBaseDir.resolve("src/main/java")).resolve("A.java"));
+        Files.createFile(realBaseDir.resolve("src/main/java/B.java"));
+        Path linkedBaseDir = Files.createSymbolicLink(dir.resolve("link"), realBaseDir);
+        Set<Path> changedFiles = Collections.singleton(source.toRealPath());
+
+        assertEquals("src/main/java/A.java", ChangedSources.inclusions(linkedBaseDir, changedFiles, Arrays.asList(
+                linkedBaseDir.resolve("src/main/java/A.java"), linkedBaseDir.resolve("src/main/java/B.java"))));
+    }
+
+    @Test
+    void inclusions_noMatchingCandidate_returnsNull(@TempDir Path dir) throws IOException {
+        Path source = Files.createFile(dir.resolve("A.java"));
+        assertNull(ChangedSources.inclusions(dir, Collections.emptySet(), Collections.singletonList(source)));
+    }
+
+}
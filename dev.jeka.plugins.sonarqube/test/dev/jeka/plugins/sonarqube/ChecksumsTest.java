@@ -0,0 +1,56 @@
+package dev.jeka.plugins.sonarqube;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChecksumsTest {
+
+    private static final String ABC_SHA256 = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+    private static final String EMPTY_SHA256 = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+
+    @Test
+    void of_text_matchesKnownDigests() {
+        assertEquals(ABC_SHA256, Checksums.of("abc"));
+        assertEquals(EMPTY_SHA256, Checksums.of(""));
+    }
+
+    @Test
+    void of_file_matchesDigestOfItsContent(@TempDir Path dir) throws IOException {
+        Path file = Files.write(dir.resolve("abc.txt"), "abc".getBytes(StandardCharsets.UTF_8));
+        assertEquals(ABC_SHA256, Checksums.of(file));
+    }
+
+    @Test
+    void of_fileLargerThanBuffer_matchesDigestOfText(@TempDir Path dir) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            sb.append("line ").append(i).append('\n');
+        }
+        Path file = Files.write(dir.resolve("large.txt"), sb.toString().getBytes(StandardCharsets.UTF_8));
+        assertEquals(Checksums.of(sb.toString()), Checksums.of(file));
+    }
+
+    @Test
+    void of_text_isLowerCaseHexWithLeadingZeros() {
+        for (int i = 0; i < 100; i++) {
+            String checksum = Checksums.of("text" + i);
+            assertEquals(64, checksum.length());
+            assertTrue(checksum.matches("[0-9a-f]+"), checksum);
+        }
+    }
+
+    @Test
+    void of_missingFile_throwsUncheckedIOException(@TempDir Path dir) {
+        assertThrows(UncheckedIOException.class, () -> Checksums.of(dir.resolve("missing")));
+    }
+
+}
@@ -0,0 +1,111 @@
+package dev.jeka.plugins.sonarqube;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.function.BiConsumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileHashIndexTest {
+
+    private static final BiConsumer<String, String> IGNORE_LOG = (message, level) -> { };
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void load_missingFile_returnsEmptyIndex() {
+        assertTrue(FileHashIndex.load(dir.resolve("missing.txt"), IGNORE_LOG).isEmpty());
+    }
+
+    @Test
+    void load_corruptedFile_returnsEmptyIndex() throws IOException {
+        Path indexFile = write("index.txt", "hash\tnot-a-number\t0\t/some/file");
+        assertTrue(FileHashIndex.load(indexFile, IGNORE_LOG).isEmpty());
+    }
+
+    @Test
+    void update_reportsNewAndChangedContentOnly() throws IOException {
+        Path file = write("A.java", "class A {}");
+        FileHashIndex index = FileHashIndex.load(dir.resolve("index.txt"), IGNORE_LOG);
+        assertTrue(index.update(file));
+        assertFalse(index.isEmpty());
+        assertFalse(index.update(file));
+
+        write("A.java", "class A { int i; }");
+        assertTrue(index.update(file));
+        assertFalse(index.update(file));
+    }
+
+    @Test
+    void update_touchedFileWithSameContent_isUnchanged() throws IOException {
+        Path file = write("A.java", "class A {}");
+        FileHashIndex index = FileHashIndex.load(dir.resolve("index.txt"), IGNORE_LOG);
+        index.update(file);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 10_000));
+        assertFalse(index.update(file));
+    }
+
+    @Test
+    void hash_matchesChecksumOfContent() throws IOException {
+        Path file = write("A.java", "class A {}");
+        assertEquals(Checksums.of(file), FileHashIndex.load(dir.resolve("index.txt"), IGNORE_LOG).hash(file));
+    }
+
+    @Test
+    void saveThenLoad_keepsIndexedHashes() throws IOException {
+        Path a = write("A.java", "class A {}");
+        Path b = write("B.java", "class B {}");
+        Path indexFile = dir.resolve("work/index.txt");
+        FileHashIndex index = FileHashIndex.load(indexFile, IGNORE_LOG);
+        index.updateAll(Arrays.asList(a, b));
+        index.save(indexFile);
+
+        write("B.java", "class B { int i; }");
+        FileHashIndex reloaded = FileHashIndex.load(indexFile, IGNORE_LOG);
+        assertFalse(reloaded.isEmpty());
+        assertEquals(Collections.singletonList(b.toAbsolutePath().normalize()),
+                reloaded.updateAll(Arrays.asList(a, b)));
+    }
+
+    @Test
+    void updateAll_returnsChangedFilesSorted() throws IOException {
+        Path c = write("C.java", "class C {}");
+        Path a = write("A.java", "class A {}");
+        FileHashIndex index = FileHashIndex.load(dir.resolve("index.txt"), IGNORE_LOG);
+        assertEquals(Arrays.asList(a.toAbsolutePath().normalize(), c.toAbsolutePath().normalize()),
+                index.updateAll(Arrays.asList(c, a)));
+        assertTrue(index.updateAll(Arrays.asList(c, a)).isEmpty());
+    }
+
+    @Test
+    void mergeMissing_keepsOwnEntriesAndAddsOthers() throws IOException {
+        Path a = write("A.java", "class A {}");
+        Path b = write("B.java", "class B {}");
+        Path indexFile = dir.resolve("index.txt");
+        FileHashIndex other = FileHashIndex.load(indexFile, IGNORE_LOG);
+        other.updateAll(Arrays.asList(a, b));
+        other.save(indexFile);
+
+        write("A.java", "class A { int i; }");
+        FileHashIndex index = FileHashIndex.load(dir.resolve("none.txt"), IGNORE_LOG);
+        index.update(a);
+        index.mergeMissing(FileHashIndex.load(indexFile, IGNORE_LOG));
+        index.save(indexFile);
+
+        assertTrue(FileHashIndex.load(indexFile, IGNORE_LOG).updateAll(Arrays.asList(a, b)).isEmpty());
+    }
+
+    private Path write(String name, String content) throws IOException {
+        return Files.write(dir.resolve(name), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
@@ -0,0 +1,126 @@
+package dev.jeka.plugins.sonarqube;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InputFingerprintTest {
+
+    @TempDir
+    Path dir;
+
+    private Path workingDir;
+
+    private Path source;
+
+    private final Map<String, String> properties = new HashMap<>();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        workingDir = dir.resolve(".sonar");
+        source = write("src/Foo.java", "class Foo {}");
+        write("src/bar/Bar.java", "class Bar {}");
+        properties.put(JkSonarqube.PROJECT_KEY, "proj");
+        properties.put(JkSonarqube.SOURCES, "src");
+    }
+
+    @Test
+    void matchesLastSuccess_unchangedInputs_returnsTrue() {
+        recordSuccess();
+        assertTrue(matchesLastSuccess());
+    }
+
+    @Test
+    void run_unchangedInputs_skipsAnalysis() {
+        JkSonarqube sonarqube = JkSonarqube.ofEmbedded()
+                .setProperties(properties)
+                .setProperty(JkSonarqube.PROJECT_BASE_DIR, dir.toString())
+                .setProperty(JkSonarqube.WORKING_DIRECTORY, workingDir.toString())
+                .setSkipIfUpToDate(true);
+        InputFingerprint fingerprint = new InputFingerprint(workingDir, (message, level) -> { });
+        fingerprint.recordSuccess(fingerprint.compute(sonarqube.getProperties(), dir));
+        List<String> messages = new ArrayList<>();
+        sonarqube.setOutputConsumer((message, level) -> messages.add(message));
+
+        sonarqube.run();  // Would fail at resolving the scanner if not skipped
+
+        assertEquals(1, messages.size());
+        assertTrue(messages.get(0).startsWith("Sonar analysis skipped"));
+    }
+
+    @Test
+    void matchesLastSuccess_touchedFileWithSameContent_returnsTrue() throws IOException {
+        recordSuccess();
+        Files.setLastModifiedTime(source, FileTime.fromMillis(System.currentTimeMillis() + 10_000));
+        assertTrue(matchesLastSuccess());
+    }
+
+    @Test
+    void matchesLastSuccess_changedFile_returnsFalse() throws IOException {
+        recordSuccess();
+        Files.write(source, "class Foo { int i; }".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(source, FileTime.fromMillis(System.currentTimeMillis() + 10_000));
+        assertFalse(matchesLastSuccess());
+    }
+
+    @Test
+    void matchesLastSuccess_addedFile_returnsFalse() throws IOException {
+        recordSuccess();
+        write("src/bar/Baz.java", "class Baz {}");
+        assertFalse(matchesLastSuccess());
+    }
+
+    @Test
+    void compute_missingPath_isPartOfFingerprint() throws IOException {
+        properties.put(JkSonarqube.JUNIT_REPORTS_PATH, "build/test-reports");
+        recordSuccess();
+        assertTrue(matchesLastSuccess());
+
+        write("build/test-reports/TEST-Foo.xml", "<testsuite/>");
+        assertFalse(matchesLastSuccess());
+    }
+
+    @Test
+    void matchesLastSuccess_changedProperty_returnsFalse() {
+        recordSuccess();
+        properties.put(JkSonarqube.PROJECT_VERSION, "2.0");
+        assertFalse(matchesLastSuccess());
+    }
+
+    @Test
+    void matchesLastSuccess_afterClear_returnsFalse() {
+        recordSuccess();
+        new InputFingerprint(workingDir, (message, level) -> { }).clearLastSuccess();
+        assertFalse(matchesLastSuccess());
+    }
+
+    // A new instance is used each time, as across Jeka invocations.
+    private void recordSuccess() {
+        InputFingerprint fingerprint = new InputFingerprint(workingDir, (message, level) -> { });
+        fingerprint.recordSuccess(fingerprint.compute(properties, dir));
+    }
+
+    private boolean matchesLastSuccess() {
+        InputFingerprint fingerprint = new InputFingerprint(workingDir, (message, level) -> { });
+        return fingerprint.matchesLastSuccess(fingerprint.compute(properties, dir));
+    }
+
+    private Path write(String relativePath, String content) throws IOException {
+        Path file = dir.resolve(relativePath);
+        Files.createDirectories(file.getParent());
+        return Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
@@ -0,0 +1,33 @@
+package dev.jeka.plugins.sonarqube;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JkSonarqubeTest {
+
+    @Test
+    void removeCredentials_removesModuleCopiesAndReturnsProjectOnes() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("sonar.login", "user");
+        properties.put("sonar.password", "secret");
+        properties.put("sonar.token", "tok");
+        properties.put("core.sonar.login", "user");
+        properties.put("core.sonar.password", "secret");
+        properties.put("web.sonar.token", "tok");
+        properties.put("sonar.projectKey", "my-project");
+        properties.put("core.sonar.sources", "src");
+
+        Map<String, String> credentials = JkSonarqube.removeCredentials(properties);
+
+        assertEquals(3, credentials.size());
+        assertEquals("secret", credentials.get("sonar.password"));
+        assertEquals(2, properties.size());
+        assertEquals("my-project", properties.get("sonar.projectKey"));
+        assertEquals("src", properties.get("core.sonar.sources"));
+    }
+
+}
@@ -0,0 +1,128 @@
+package dev.jeka.plugins.sonarqube;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LibraryPrunerTest {
+
+    // Fixtures : except for CRC32, types below are referenced only through descriptors and signatures, so the
+    // constant pool holds no class entry for them.
+
+    @SuppressWarnings("unused")
+    static class FieldFixture {
+
+        AtomicLong counter;
+    }
+
+    @SuppressWarnings("unused")
+    interface MethodFixture {
+
+        java.util.zip.Checksum checksum(java.time.Duration timeout);
+    }
+
+    @SuppressWarnings("unused")
+    static class SignatureFixture {
+
+        List<Pattern> patterns;
+    }
+
+    @SuppressWarnings("unused")
+    static class WideConstantFixture {
+
+        long big = 1L << 40;
+
+        double ratio = 0.123456789;
+
+        Object create() {
+            return new java.util.zip.CRC32();
+        }
+    }
+
+    @Test
+    void referencedPackages_fieldDescriptor_returnsFieldTypePackage() throws IOException {
+        assertTrue(referencedPackages(FieldFixture.class).contains("java/util/concurrent/atomic"));
+    }
+
+    @Test
+    void referencedPackages_methodDescriptor_returnsReturnAndParameterTypePackages() throws IOException {
+        Set<String> packages = referencedPackages(MethodFixture.class);
+        assertTrue(packages.contains("java/util/zip"));
+        assertTrue(packages.contains("java/time"));
+    }
+
+    @Test
+    void referencedPackages_genericSignature_returnsTypeArgumentPackage() throws IOException {
+        Set<String> packages = referencedPackages(SignatureFixture.class);
+        assertTrue(packages.contains("java/util"));
+        assertTrue(packages.contains("java/util/regex"));
+    }
+
+    @Test
+    void referencedPackages_longAndDoubleConstants_readsFollowingEntries() throws IOException {
+        assertTrue(referencedPackages(WideConstantFixture.class).contains("java/util/zip"));
+    }
+
+    @Test
+    void referencedPackages_longAndDoubleConstants_takeTwoSlots() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = header(bytes, 7);
+        out.writeByte(5);  // Long, slots 1 and 2
+        out.writeLong(42);
+        out.writeByte(6);  // Double, slots 3 and 4
+        out.writeDouble(4.2);
+        out.writeByte(1);  // Utf8, slot 5
+        out.writeUTF("java/util/zip/CRC32");
+        out.writeByte(7);  // Class, slot 6
+        out.writeShort(5);
+        assertEquals(Collections.singleton("java/util/zip"), parse(bytes));
+    }
+
+    @Test
+    void referencedPackages_unknownTag_fails() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = header(bytes, 2);
+        out.writeByte(99);
+        IOException e = assertThrows(IOException.class, () -> parse(bytes));
+        assertTrue(e.getMessage().contains("99"));
+    }
+
+    @Test
+    void referencedPackages_notAClassFile_returnsEmptySet() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeInt(0x504B0304);
+        assertTrue(parse(bytes).isEmpty());
+    }
+
+    private static Set<String> referencedPackages(Class<?> fixture) throws IOException {
+        String resource = fixture.getName().substring(fixture.getName().lastIndexOf('.') + 1) + ".class";
+        try (DataInputStream in = new DataInputStream(fixture.getResourceAsStream(resource))) {
+            return LibraryPruner.referencedPackages(in);
+        }
+    }
+
+    private static DataOutputStream header(ByteArrayOutputStream bytes, int constantPoolCount) throws IOException {
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);   // minor version
+        out.writeShort(52);  // major version
+        out.writeShort(constantPoolCount);
+        return out;
+    }
+
+    private static Set<String> parse(ByteArrayOutputStream bytes) throws IOException {
+        return LibraryPruner.referencedPackages(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+}
@@ -0,0 +1,41 @@
+package dev.jeka.plugins.sonarqube;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OutputCaptureTest {
+
+    @Test
+    void dumpTo_skipsLinesAlreadyShown() throws Exception {
+        List<String> dumped = new ArrayList<>();
+        try (OutputCapture capture = new OutputCapture(10, 10_000, null, null)) {
+            capture.accept("INFO: Load project", "INFO");
+            capture.accept("ERROR: Cannot parse Foo.java", "ERROR", true);
+            capture.accept("INFO: Analysis failed", "INFO");
+            capture.dumpTo((line, level) -> dumped.add(line), "Analysis failed");
+        }
+        assertEquals(3, dumped.size());
+        assertTrue(dumped.get(0).contains("except 1 lines displayed above"), dumped.get(0));
+        assertEquals("INFO: Load project", dumped.get(1));
+        assertEquals("INFO: Analysis failed", dumped.get(2));
+    }
+
+    @Test
+    void dumpTo_keepsLastLinesOnly() throws Exception {
+        List<String> dumped = new ArrayList<>();
+        try (OutputCapture capture = new OutputCapture(2, 10_000, null, null)) {
+            capture.accept("line 1", "INFO");
+            capture.accept("line 2", "INFO");
+            capture.accept("line 3", "INFO");
+            capture.dumpTo((line, level) -> dumped.add(line), "Failed");
+        }
+        assertTrue(dumped.get(0).contains("1 previous lines dropped"), dumped.get(0));
+        assertEquals(3, dumped.size());
+        assertEquals("line 3", dumped.get(2));
+    }
+
+}
@@ -0,0 +1,142 @@
+package dev.jeka.plugins.sonarqube;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QualityGatePollerTest {
+
+    @TempDir
+    Path workingDir;
+
+    private HttpServer server;
+
+    private final Deque<String> taskResponses = new ArrayDeque<>();
+
+    private final List<Long> taskRequestTimes = Collections.synchronizedList(new ArrayList<>());
+
+    private final List<String> authorizations = Collections.synchronizedList(new ArrayList<>());
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/api/ce/task", exchange -> {
+            taskRequestTimes.add(System.nanoTime());
+            authorizations.add(exchange.getRequestHeaders().getFirst("Authorization"));
+            String response;
+            synchronized (taskResponses) {
+                response = taskResponses.size() > 1 ? taskResponses.poll() : taskResponses.peek();
+            }
+            respond(exchange, response);
+        });
+        server.createContext("/api/qualitygates/project_status", exchange -> {
+            assertEquals("analysisId=AX1", exchange.getRequestURI().getQuery());
+            respond(exchange, "{\"projectStatus\": {\"conditions\": [{\"status\": \"OK\"}], "
+                    + "\"status\": \"ERROR\", \"periods\": []}}");
+        });
+        server.start();
+        String serverUrl = "http://localhost:" + server.getAddress().getPort();
+        Files.write(workingDir.resolve(QualityGatePoller.REPORT_TASK_FILE), Arrays.asList(
+                "projectKey=my-project",
+                "serverUrl=" + serverUrl.replace(":", "\\:"),
+                "dashboardUrl=" + (serverUrl + "/dashboard?id=my-project").replace(":", "\\:"),
+                "ceTaskUrl=" + (serverUrl + "/api/ce/task?id=T1").replace(":", "\\:")));
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void poll_pendingThenSuccess_returnsQualityGateOfAnalysis() {
+        taskResponses.add(task("PENDING", null));
+        taskResponses.add(task("IN_PROGRESS", null));
+        taskResponses.add(task("SUCCESS", "AX1"));
+
+        JkSonarqubeQualityGate gate = new QualityGatePoller("token", null, Duration.ofSeconds(30))
+                .poll(workingDir).join();
+
+        assertEquals(JkSonarqubeQualityGate.Status.ERROR, gate.getStatus());
+        assertEquals("my-project", gate.getProjectKey());
+        assertEquals("AX1", gate.getAnalysisId());
+        assertFalse(gate.isPassed());
+        assertEquals(3, taskRequestTimes.size());
+        assertEquals("Basic " + Base64.getEncoder().encodeToString("token:".getBytes(StandardCharsets.UTF_8)),
+                authorizations.get(0));
+    }
+
+    @Test
+    void poll_failedTask_fails() {
+        taskResponses.add(task("FAILED", null));
+
+        CompletionException e = assertThrows(CompletionException.class,
+                () -> new QualityGatePoller(null, null, Duration.ofSeconds(30)).poll(workingDir).join());
+
+        assertTrue(e.getCause().getMessage().contains("FAILED"), e.getCause().getMessage());
+        assertEquals(1, taskRequestTimes.size());
+    }
+
+    @Test
+    void poll_taskNeverProcessed_failsAtTimeoutWithGrowingDelays() {
+        taskResponses.add(task("PENDING", null));
+
+        CompletionException e = assertThrows(CompletionException.class,
+                () -> new QualityGatePoller(null, null, Duration.ofSeconds(2)).poll(workingDir).join());
+
+        assertTrue(e.getCause().getMessage().contains("within 2s"), e.getCause().getMessage());
+        // Delays of 500ms then 1s, next one of 2s would exceed the timeout
+        assertEquals(3, taskRequestTimes.size());
+        long firstDelay = taskRequestTimes.get(1) - taskRequestTimes.get(0);
+        long secondDelay = taskRequestTimes.get(2) - taskRequestTimes.get(1);
+        assertTrue(firstDelay >= Duration.ofMillis(500).toNanos(), "first delay " + firstDelay);
+        assertTrue(secondDelay >= Duration.ofMillis(1000).toNanos(), "second delay " + secondDelay);
+    }
+
+    @Test
+    void poll_missingReportTask_fails() throws IOException {
+        Files.delete(workingDir.resolve(QualityGatePoller.REPORT_TASK_FILE));
+        assertThrows(CompletionException.class,
+                () -> new QualityGatePoller(null, null, Duration.ofSeconds(2)).poll(workingDir).join());
+    }
+
+    @Test
+    void jsonString_readsFieldOfRequestedObjectOnly() {
+        String json = "{\"other\": {\"status\": \"WRONG\"}, \"task\": {\"id\": \"T1\", "
+                + "\"warnings\": [\"a \\\"status\\\"\"], \"status\": \"SUCCESS\"}}";
+        assertEquals("SUCCESS", QualityGatePoller.jsonString(json, "task", "status"));
+        assertThrows(IllegalStateException.class, () -> QualityGatePoller.jsonString(json, "task", "analysisId"));
+        assertThrows(IllegalStateException.class, () -> QualityGatePoller.jsonString("{\"task\": ", "task", "id"));
+    }
+
+    private static String task(String status, String analysisId) {
+        return "{\"task\": {\"id\": \"T1\", \"type\": \"REPORT\", \"status\": \"" + status + "\""
+                + (analysisId == null ? "" : ", \"analysisId\": \"" + analysisId + "\"") + "}}";
+    }
+
+    private static void respond(HttpExchange exchange, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+}
@@ -0,0 +1,136 @@
+package dev.jeka.plugins.sonarqube;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReportConsolidatorTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void mergeJacoco_lineCoveredInAnyReportIsCovered() throws Exception {
+        Path unit = jacoco("unit.xml",
+                "<line nr='10' mi='3' ci='0' mb='0' cb='0'/><line nr='11' mi='0' ci='2' mb='0' cb='0'/>");
+        Path it = jacoco("it.xml",
+                "<line nr='10' mi='0' ci='3' mb='0' cb='0'/><line nr='11' mi='2' ci='0' mb='0' cb='0'/>");
+
+        Document merged = parse(new ReportConsolidator(dir.resolve("out")).mergeJacoco(Arrays.asList(unit, it)));
+
+        assertCounters(merged, "10", 0, 3, 0, 0);
+        assertCounters(merged, "11", 0, 2, 0, 0);
+    }
+
+    @Test
+    void mergeJacoco_keepsHighestCoveredBranchCount() throws Exception {
+        Path unit = jacoco("unit.xml", "<line nr='20' mi='0' ci='4' mb='3' cb='1'/>");
+        Path it = jacoco("it.xml", "<line nr='20' mi='0' ci='4' mb='1' cb='3'/>");
+
+        Document merged = parse(new ReportConsolidator(dir.resolve("out")).mergeJacoco(Arrays.asList(unit, it)));
+
+        assertCounters(merged, "20", 0, 4, 1, 3);
+    }
+
+    @Test
+    void mergeJacoco_keepsLinesAndFilesFoundInASingleReport() throws Exception {
+        Path unit = jacoco("unit.xml", "<line nr='1' mi='1' ci='0' mb='0' cb='0'/>");
+        Path other = write("other.xml", "<report name='other'><package name='com/acme/other'>"
+                + "<class name='com/acme/other/B'/><sourcefile name='B.java'>"
+                + "<line nr='5' mi='0' ci='1' mb='0' cb='0'/><counter type='LINE' missed='0' covered='1'/>"
+                + "</sourcefile></package></report>");
+
+        Document merged = parse(new ReportConsolidator(dir.resolve("out")).mergeJacoco(Arrays.asList(unit, other)));
+
+        NodeList packages = merged.getElementsByTagName("package");
+        assertEquals(2, packages.getLength());
+        assertEquals("com/acme", ((Element) packages.item(0)).getAttribute("name"));
+        assertEquals("com/acme/other", ((Element) packages.item(1)).getAttribute("name"));
+        assertEquals(2, merged.getElementsByTagName("line").getLength());
+        assertEquals(0, merged.getElementsByTagName("class").getLength());
+        assertEquals(0, merged.getElementsByTagName("counter").getLength());
+    }
+
+    @Test
+    void mergeJacoco_isProducedAgainOnlyWhenInputsChange() throws Exception {
+        Path unit = jacoco("unit.xml", "<line nr='1' mi='1' ci='0' mb='0' cb='0'/>");
+        Path outputDir = dir.resolve("out");
+        ReportConsolidator consolidator = new ReportConsolidator(outputDir);
+        Path merged = consolidator.mergeJacoco(Collections.singletonList(unit));
+        consolidator.saveIndex();
+        FileTime marker = FileTime.fromMillis(1_000_000);
+        Files.setLastModifiedTime(merged, marker);
+
+        new ReportConsolidator(outputDir).mergeJacoco(Collections.singletonList(unit));
+        assertEquals(marker, Files.getLastModifiedTime(merged));
+
+        jacoco("unit.xml", "<line nr='1' mi='0' ci='1' mb='0' cb='0'/>");
+        Files.setLastModifiedTime(unit, FileTime.fromMillis(Files.getLastModifiedTime(unit).toMillis() + 5000));
+        new ReportConsolidator(outputDir).mergeJacoco(Collections.singletonList(unit));
+        assertNotEquals(marker, Files.getLastModifiedTime(merged));
+        assertCounters(parse(merged), "1", 0, 1, 0, 0);
+    }
+
+    @Test
+    void aggregateJunit_gathersSuitesWithoutOutputs() throws Exception {
+        Path a = write("TEST-A.xml", "<testsuite name='A' tests='1'><testcase name='a1'/>"
+                + "<system-out><![CDATA[noise]]></system-out></testsuite>");
+        Path b = write("TEST-B.xml", "<testsuites><testsuite name='B' tests='1'><testcase name='b1'>"
+                + "<failure message='boom'>trace</failure></testcase><system-err>noise</system-err>"
+                + "</testsuite></testsuites>");
+
+        Path junitDir = new ReportConsolidator(dir.resolve("out")).aggregateJunit(Arrays.asList(a, b));
+
+        Path[] files = Files.list(junitDir).filter(path -> path.toString().endsWith(".xml")).toArray(Path[]::new);
+        assertEquals(1, files.length);
+        Document aggregated = parse(files[0]);
+        assertEquals("testsuites", aggregated.getDocumentElement().getTagName());
+        assertEquals(2, aggregated.getElementsByTagName("testsuite").getLength());
+        assertEquals(2, aggregated.getElementsByTagName("testcase").getLength());
+        assertEquals("trace", aggregated.getElementsByTagName("failure").item(0).getTextContent());
+        assertEquals(0, aggregated.getElementsByTagName("system-out").getLength());
+        assertEquals(0, aggregated.getElementsByTagName("system-err").getLength());
+    }
+
+    private Path jacoco(String name, String lines) throws Exception {
+        return write(name, "<report name='" + name + "'><package name='com/acme'><class name='com/acme/A'/>"
+                + "<sourcefile name='A.java'>" + lines + "</sourcefile></package></report>");
+    }
+
+    private Path write(String name, String content) throws Exception {
+        return Files.write(dir.resolve(name), ("<?xml version='1.0' encoding='UTF-8'?>" + content)
+                .getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Document parse(Path file) throws Exception {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file.toFile());
+    }
+
+    private static void assertCounters(Document report, String lineNumber, int mi, int ci, int mb, int cb) {
+        NodeList lines = report.getElementsByTagName("line");
+        for (int i = 0; i < lines.getLength(); i++) {
+            Element line = (Element) lines.item(i);
+            if (lineNumber.equals(line.getAttribute("nr"))) {
+                assertEquals(Arrays.asList(mi, ci, mb, cb), Arrays.asList(
+                        Integer.parseInt(line.getAttribute("mi")), Integer.parseInt(line.getAttribute("ci")),
+                        Integer.parseInt(line.getAttribute("mb")), Integer.parseInt(line.getAttribute("cb"))),
+                        "counters of line " + lineNumber);
+                return;
+            }
+        }
+        fail("No line " + lineNumber + " in merged report");
+    }
+
+}
@@ -0,0 +1,282 @@
+package dev.jeka.plugins.sonarqube;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReportQueueTest {
+
+    private static final String BOUNDARY = "xYzBoundary";
+
+    private static final String CONTENT_TYPE = "multipart/form-data; boundary=" + BOUNDARY;
+
+    @TempDir
+    Path queueDir;
+
+    private HttpServer server;
+
+    private String serverUrl;
+
+    private final Deque<Integer> submitStatuses = new ArrayDeque<>();
+
+    private final List<byte[]> submittedBodies = Collections.synchronizedList(new ArrayList<>());
+
+    private final List<String> submitHeaders = Collections.synchronizedList(new ArrayList<>());
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/api/server/version", exchange -> respond(exchange, 200, "9.9"));
+        server.createContext("/api/ce/submit", exchange -> {
+            int status;
+            synchronized (submitStatuses) {
+                status = submitStatuses.size() > 1 ? submitStatuses.poll() : submitStatuses.peek();
+            }
+            submitHeaders.add(exchange.getRequestHeaders().getFirst("Content-Type") + " | "
+                    + exchange.getRequestHeaders().getFirst("Authorization"));
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (InputStream is = exchange.getRequestBody()) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = is.read(buffer)) != -1) {
+                    body.write(buffer, 0, read);
+                }
+            }
+            submittedBodies.add(body.toByteArray());
+            respond(exchange, status, "{\"taskId\":\"T1\"}");
+        });
+        server.start();
+        serverUrl = "http://localhost:" + server.getAddress().getPort();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void proxy_queuesSubmissionAndForwardsOtherRequests() throws Exception {
+        ReportQueue queue = new ReportQueue(queueDir);
+        try (ReportQueue.Proxy proxy = queue.startProxy(serverUrl)) {
+            HttpURLConnection connection = (HttpURLConnection) new URL(proxy.url() + "/api/server/version")
+                    .openConnection();
+            assertEquals(200, connection.getResponseCode());
+            assertEquals("9.9", read(connection.getInputStream()));
+
+            String response = submit(proxy.url(), multipart("my:project", "report content"));
+            assertTrue(response.contains("queued-"), response);
+        }
+        assertTrue(submittedBodies.isEmpty());
+        assertEquals(2, fileCount(queueDir));
+    }
+
+    @Test
+    void proxy_reusesPortOfPreviousProxy() {
+        ReportQueue queue = new ReportQueue(queueDir);
+        String firstUrl;
+        try (ReportQueue.Proxy proxy = queue.startProxy(serverUrl)) {
+            firstUrl = proxy.url();
+        }
+        try (ReportQueue.Proxy proxy = queue.startProxy(serverUrl)) {
+            assertEquals(firstUrl, proxy.url());
+            try (ReportQueue.Proxy concurrentProxy = queue.startProxy(serverUrl)) {
+                assertNotEquals(firstUrl, concurrentProxy.url());
+            }
+        }
+    }
+
+    @Test
+    void upload_replaysQueuedReportsAndEmptiesQueue() throws Exception {
+        byte[] body = multipart("my:project", "report content");
+        enqueue(body);
+        submitStatuses.add(200);
+
+        ReportQueue.UploadResult result = new ReportQueue(queueDir).upload(serverUrl, "token", null, 2, 3);
+
+        assertEquals(1, result.uploaded);
+        assertEquals(0, result.failed + result.remaining);
+        assertArrayEquals(body, submittedBodies.get(0));
+        String expectedAuthorization = "Basic " + Base64.getEncoder()
+                .encodeToString("token:".getBytes(StandardCharsets.UTF_8));
+        assertEquals(CONTENT_TYPE + " | " + expectedAuthorization, submitHeaders.get(0));
+        assertEquals(0, fileCount(queueDir));
+    }
+
+    @Test
+    void upload_retriesOnServerError() throws Exception {
+        enqueue(multipart("my:project", "report content"));
+        submitStatuses.add(503);
+        submitStatuses.add(200);
+
+        ReportQueue.UploadResult result = new ReportQueue(queueDir).upload(serverUrl, null, null, 1, 3);
+
+        assertEquals(1, result.uploaded);
+        assertEquals(2, submittedBodies.size());
+        assertEquals(0, fileCount(queueDir));
+    }
+
+    @Test
+    void upload_exhaustedRetries_keepsReportQueued() throws Exception {
+        enqueue(multipart("my:project", "report content"));
+        submitStatuses.add(503);
+
+        ReportQueue.UploadResult result = new ReportQueue(queueDir).upload(serverUrl, null, null, 1, 1);
+
+        assertEquals(1, result.remaining);
+        assertEquals(1, submittedBodies.size());
+        assertEquals(2, fileCount(queueDir));
+    }
+
+    @Test
+    void upload_refusedCredentials_keepsReportsQueuedAndStops() throws Exception {
+        enqueue(multipart("project-a", "report a"));
+        enqueue(multipart("project-b", "report b"));
+        submitStatuses.add(401);
+
+        ReportQueue.UploadResult result = new ReportQueue(queueDir).upload(serverUrl, "bad", null, 1, 3);
+
+        assertTrue(result.unauthorized);
+        assertEquals(2, result.remaining);
+        assertEquals(0, result.failed);
+        assertEquals(1, submittedBodies.size());
+        assertEquals(4, fileCount(queueDir));
+        assertFalse(Files.exists(queueDir.resolve("failed")));
+    }
+
+    @Test
+    void upload_rejectedReport_isMovedToFailedDir() throws Exception {
+        enqueue(multipart("my:project", "report content"));
+        submitStatuses.add(400);
+
+        ReportQueue.UploadResult result = new ReportQueue(queueDir).upload(serverUrl, null, null, 1, 3);
+
+        assertEquals(1, result.failed);
+        assertEquals(2, fileCount(queueDir.resolve("failed")));
+    }
+
+    @Test
+    void projectKey_stopsReadingAtBoundaryClosingItsPart() throws IOException {
+        String head = "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"projectKey\"\r\n\r\n"
+                + "my:project\r\n"
+                + "--" + BOUNDARY + "\r\n";
+        InputStream unreadable = new InputStream() {
+            @Override
+            public int read() {
+                throw new AssertionError("Content read beyond the project key part");
+            }
+        };
+        InputStream content = new SequenceInputStream(
+                new ByteArrayInputStream(head.getBytes(StandardCharsets.ISO_8859_1)), unreadable) {
+            // Reads one byte at a time so buffering does not reach the unreadable stream in advance
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return len == 0 ? 0 : super.read(b, off, 1);
+            }
+        };
+
+        assertEquals("my:project", ReportQueue.projectKey(content));
+    }
+
+    @Test
+    void projectKey_afterBinaryPart_isFound() throws IOException {
+        byte[] body = multipartWithReportFirst("proj\u00e9", new byte[100_000]);
+
+        assertEquals("proj\u00e9", ReportQueue.projectKey(new ByteArrayInputStream(body)));
+    }
+
+    @Test
+    void projectKey_missing_returnsNull() throws IOException {
+        String content = "--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"other\"\r\n\r\nvalue\r\n"
+                + "--" + BOUNDARY + "--\r\n";
+
+        assertNull(ReportQueue.projectKey(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    private void enqueue(byte[] body) throws IOException {
+        try (ReportQueue.Proxy proxy = new ReportQueue(queueDir).startProxy(serverUrl)) {
+            submit(proxy.url(), body);
+        }
+    }
+
+    private static String submit(String url, byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url + "/api/ce/submit").openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", CONTENT_TYPE);
+        try (OutputStream os = connection.getOutputStream()) {
+            os.write(body);
+        }
+        assertEquals(200, connection.getResponseCode());
+        return read(connection.getInputStream());
+    }
+
+    private static byte[] multipart(String projectKey, String report) {
+        return ("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"projectKey\"\r\n\r\n"
+                + projectKey + "\r\n"
+                + "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"report\"; filename=\"report.zip\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n"
+                + report + "\r\n"
+                + "--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] multipartWithReportFirst(String projectKey, byte[] report) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"report\"; filename=\"report.zip\"\r\n\r\n")
+                .getBytes(StandardCharsets.UTF_8));
+        out.write(report);
+        out.write(("\r\n--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"projectKey\"\r\n\r\n"
+                + projectKey + "\r\n"
+                + "--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        return out.toByteArray();
+    }
+
+    private static long fileCount(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(Files::isRegularFile)
+                    .filter(file -> !file.getFileName().toString().equals("proxy.port"))
+                    .count();
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream is = in) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+}
@@ -0,0 +1,111 @@
+package dev.jeka.plugins.sonarqube;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScannerCacheTest {
+
+    private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void exportThenImport_restoresFilesAndLastUse() throws IOException {
+        Path home = dir.resolve("home");
+        FileTime lastUse = FileTime.fromMillis(System.currentTimeMillis() / 1000 * 1000 - 3 * DAY_MILLIS);
+        entry(home, "hash1", "sonar-java.jar", 100, lastUse);
+        entry(home, "hash2/nested", "sonar-js.jar", 50, lastUse);
+        Files.createDirectories(home.resolve("cache/_tmp"));
+        Files.write(home.resolve("cache/_tmp/partial"), new byte[10]);
+        Path archive = dir.resolve("archive/cache.zip");
+
+        new ScannerCache(home).exportTo(archive);
+        Path restoredHome = dir.resolve("restored");
+        new ScannerCache(restoredHome).importFrom(archive);
+
+        Path restoredJar = restoredHome.resolve("cache/hash1/sonar-java.jar");
+        assertEquals(100, Files.size(restoredJar));
+        assertEquals(50, Files.size(restoredHome.resolve("cache/hash2/nested/sonar-js.jar")));
+        assertFalse(Files.exists(restoredHome.resolve("cache/_tmp")));
+        assertEquals(lastUse.toMillis(), Files.getLastModifiedTime(restoredJar).toMillis(), 1000);
+    }
+
+    @Test
+    void importFrom_keepsExistingFiles() throws IOException {
+        Path home = dir.resolve("home");
+        entry(home, "hash1", "sonar-java.jar", 100, FileTime.fromMillis(System.currentTimeMillis()));
+        Path archive = dir.resolve("cache.zip");
+        new ScannerCache(home).exportTo(archive);
+        Path restoredHome = dir.resolve("restored");
+        entry(restoredHome, "hash1", "sonar-java.jar", 10, FileTime.fromMillis(System.currentTimeMillis()));
+
+        new ScannerCache(restoredHome).importFrom(archive);
+
+        assertEquals(10, Files.size(restoredHome.resolve("cache/hash1/sonar-java.jar")));
+    }
+
+    @Test
+    void importFrom_rejectsEntriesOutsideCacheDir() throws IOException {
+        Path archive = dir.resolve("evil.zip");
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(archive))) {
+            zip.putNextEntry(new ZipEntry("../../evil.txt"));
+            zip.write("evil".getBytes());
+            zip.closeEntry();
+        }
+        Path home = dir.resolve("a/b/home");
+
+        assertThrows(IllegalStateException.class, () -> new ScannerCache(home).importFrom(archive));
+        assertFalse(Files.exists(dir.resolve("a/evil.txt")));
+        assertFalse(Files.exists(dir.resolve("a/b/evil.txt")));
+    }
+
+    @Test
+    void evict_deletesLeastRecentlyUsedEntriesUntilBudgetIsMet() throws IOException {
+        Path home = dir.resolve("home");
+        long now = System.currentTimeMillis();
+        entry(home, "oldest", "a.jar", 100, FileTime.fromMillis(now - 3 * DAY_MILLIS));
+        entry(home, "middle", "b.jar", 100, FileTime.fromMillis(now - 2 * DAY_MILLIS));
+        entry(home, "recent", "c.jar", 100, FileTime.fromMillis(now - DAY_MILLIS));
+
+        long freed = new ScannerCache(home).evict(150, (message, level) -> { });
+
+        assertEquals(200, freed);
+        assertFalse(Files.exists(home.resolve("cache/oldest")));
+        assertFalse(Files.exists(home.resolve("cache/middle")));
+        assertTrue(Files.exists(home.resolve("cache/recent/c.jar")));
+    }
+
+    @Test
+    void evict_withinBudget_deletesNothing() throws IOException {
+        Path home = dir.resolve("home");
+        entry(home, "hash1", "a.jar", 100, FileTime.fromMillis(System.currentTimeMillis()));
+        entry(home, "hash2", "b.jar", 100, FileTime.fromMillis(System.currentTimeMillis()));
+
+        assertEquals(0, new ScannerCache(home).evict(200, (message, level) -> { }));
+        assertTrue(Files.exists(home.resolve("cache/hash1/a.jar")));
+        assertEquals(0, new ScannerCache(dir.resolve("missing")).evict(0, (message, level) -> { }));
+    }
+
+    private static void entry(Path home, String entryDir, String fileName, int size, FileTime lastUse)
+            throws IOException {
+        Path file = Files.createDirectories(home.resolve("cache").resolve(entryDir)).resolve(fileName);
+        try (OutputStream os = Files.newOutputStream(file)) {
+            os.write(new byte[size]);
+        }
+        Files.getFileAttributeView(file, BasicFileAttributeView.class).setTimes(lastUse, lastUse, null);
+    }
+
+}
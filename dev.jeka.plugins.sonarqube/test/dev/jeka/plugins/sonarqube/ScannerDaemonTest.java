@@ -0,0 +1,114 @@
+package dev.jeka.plugins.sonarqube;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.function.BiConsumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScannerDaemonTest {
+
+    private final ScannerDaemon daemon = new ScannerDaemon(Paths.get("scanner.jar"), "4.6.2.2472",
+            Paths.get("daemon.properties"), 1000, Collections.emptyList());
+
+    @Test
+    void writeMap_readMap_roundTrips() throws IOException {
+        Map<String, String> map = new HashMap<>();
+        map.put("sonar.projectKey", "proj\u00e9");
+        map.put("sonar.libraries", String.join(",", Collections.nCopies(20_000, "/lib/a.jar")));
+        map.put("sonar.empty", "");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ScannerDaemon.writeMap(new DataOutputStream(bytes), map);
+        assertEquals(map, ScannerDaemon.readMap(input(bytes)));
+    }
+
+    @Test
+    void handle_analyse_streamsOutputThenExitCode() throws IOException {
+        Map<String, String> properties = Collections.singletonMap("sonar.projectKey", "proj");
+        List<Map<String, String>> received = new ArrayList<>();
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        boolean keepRunning = daemon.handle(request(daemon.token(), ScannerDaemon.COMMAND_ANALYSE, properties),
+                new DataOutputStream(response), (props, logConsumer) -> {
+                    received.add(props);
+                    logConsumer.accept("Analysis started", "INFO");
+                    logConsumer.accept("Sensor done", "DEBUG");
+                });
+
+        assertTrue(keepRunning);
+        assertEquals(Collections.singletonList(properties), received);
+        DataInputStream in = input(response);
+        assertLog(in, "INFO", "Analysis started");
+        assertLog(in, "DEBUG", "Sensor done");
+        assertExit(in, 0, "");
+    }
+
+    @Test
+    void handle_failingAnalysis_writesErrorInExitRecord() throws IOException {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        daemon.handle(request(daemon.token(), ScannerDaemon.COMMAND_ANALYSE, Collections.emptyMap()),
+                new DataOutputStream(response), (props, logConsumer) -> {
+                    throw new IllegalStateException("Boom");
+                });
+
+        assertExit(input(response), 1, "Boom");
+    }
+
+    @Test
+    void handle_shutdown_returnsFalse() throws IOException {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        assertFalse(daemon.handle(request(daemon.token(), ScannerDaemon.COMMAND_SHUTDOWN, null),
+                new DataOutputStream(response), failingAnalysis()));
+        assertEquals(0, response.size());
+    }
+
+    @Test
+    void handle_invalidToken_isRejectedWithoutRunningAnalysis() throws IOException {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        assertTrue(daemon.handle(request("not-the-token", ScannerDaemon.COMMAND_SHUTDOWN, null),
+                new DataOutputStream(response), failingAnalysis()));
+        assertTrue(daemon.handle(request("not-the-token", ScannerDaemon.COMMAND_ANALYSE, Collections.emptyMap()),
+                new DataOutputStream(response), failingAnalysis()));
+        assertEquals(0, response.size());
+    }
+
+    private static DataInputStream request(String token, String command, Map<String, String> properties)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        ScannerDaemon.writeString(out, token);
+        ScannerDaemon.writeString(out, command);
+        if (properties != null) {
+            ScannerDaemon.writeMap(out, properties);
+        }
+        return input(bytes);
+    }
+
+    private static BiConsumer<Map<String, String>, BiConsumer<String, String>> failingAnalysis() {
+        return (props, logConsumer) -> fail("Analysis should not run");
+    }
+
+    private static DataInputStream input(ByteArrayOutputStream bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    private static void assertLog(DataInputStream in, String level, String message) throws IOException {
+        assertEquals(ScannerDaemon.RECORD_LOG, in.readByte());
+        assertEquals(level, ScannerDaemon.readString(in));
+        assertEquals(message, ScannerDaemon.readString(in));
+    }
+
+    private static void assertExit(DataInputStream in, int exitCode, String error) throws IOException {
+        assertEquals(ScannerDaemon.RECORD_EXIT, in.readByte());
+        assertEquals(exitCode, in.readInt());
+        assertEquals(error, ScannerDaemon.readString(in));
+        assertEquals(-1, in.read());
+    }
+
+}
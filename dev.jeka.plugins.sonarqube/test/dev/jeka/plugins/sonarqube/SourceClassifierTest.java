@@ -0,0 +1,73 @@
+package dev.jeka.plugins.sonarqube;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SourceClassifierTest {
+
+    @Test
+    void hasGeneratedMarker_generatedAnnotation() {
+        assertTrue(SourceClassifier.hasGeneratedMarker("package a;\n\n@Generated(\"protoc\")\npublic class A {}"));
+        assertTrue(SourceClassifier.hasGeneratedMarker(
+                "package a;\n@SuppressWarnings(\"all\") @javax.annotation.processing.Generated(\"x\") class A {}"));
+    }
+
+    @Test
+    void hasGeneratedMarker_generatorNoticeBeforePackage() {
+        assertTrue(SourceClassifier.hasGeneratedMarker("// Code generated by protoc. DO NOT EDIT.\npackage a;"));
+        assertTrue(SourceClassifier.hasGeneratedMarker("/*\n * Licensed under MIT.\n */\n"
+                + "/* This file is auto-generated */\npackage a;"));
+        assertTrue(SourceClassifier.hasGeneratedMarker("# Automatically generated by Thrift, do not edit\nimport x"));
+    }
+
+    @Test
+    void hasGeneratedMarker_ignoresMarkersAfterFirstStatement() {
+        assertFalse(SourceClassifier.hasGeneratedMarker("package a;\n\n/**\n * Parser, do not edit the grammar "
+                + "without updating tests.\n * Error messages are auto-generated.\n */\nclass Parser {}"));
+    }
+
+    @Test
+    void hasGeneratedMarker_ignoresAnnotationInCommentsAndStrings() {
+        assertFalse(SourceClassifier.hasGeneratedMarker("package a;\n/**\n@Generated is used by protoc\n */\n"
+                + "class A {\n  // @Generated\n  String s = \"@Generated\";\n  char c = '@';\n}"));
+        assertFalse(SourceClassifier.hasGeneratedMarker("package a;\nclass A { @GeneratedValue Long id; }"));
+        assertFalse(SourceClassifier.hasGeneratedMarker("package a;\nclass A { String mail = \"a@b.Generated\"; }"));
+    }
+
+    @Test
+    void classify_excludesGeneratedVendoredMinifiedAndOversizedFiles(@TempDir Path dir) throws IOException {
+        Path root = Files.createDirectories(dir.resolve("src"));
+        Path generated = write(root.resolve("a/Generated.java"), "// DO NOT EDIT\npackage a;\nclass Generated {}");
+        Path documented = write(root.resolve("a/Documented.java"),
+                "package a;\n/** Do not edit this without a review. */\nclass Documented {}");
+        Path vendored = write(root.resolve("vendor/Lib.java"), "package vendor;\nclass Lib {}");
+        Path minified = write(root.resolve("web/app.min.js"), "var a=1;");
+        Path oversized = write(root.resolve("a/Big.java"), "package a;\nclass Big {\n" + String.join("",
+                Collections.nCopies(200, "  int field;\n")) + "}");
+
+        Map<Path, SourceClassifier.Reason> excluded = new SourceClassifier(dir.resolve("cache"), 1024)
+                .classify(Collections.singletonList(root)).excludedFiles();
+
+        assertEquals(SourceClassifier.Reason.GENERATED, excluded.get(generated));
+        assertEquals(SourceClassifier.Reason.VENDORED, excluded.get(vendored));
+        assertEquals(SourceClassifier.Reason.MINIFIED, excluded.get(minified));
+        assertEquals(SourceClassifier.Reason.OVERSIZED, excluded.get(oversized));
+        assertFalse(excluded.containsKey(documented));
+        assertEquals(4, excluded.size());
+    }
+
+    private static Path write(Path file, String content) throws IOException {
+        Files.createDirectories(file.getParent());
+        return Files.write(file, content.getBytes(StandardCharsets.UTF_8)).toAbsolutePath();
+    }
+
+}